@@ -1,23 +1,24 @@
 package com.sourcegraph.cody.autocomplete
 
 import com.intellij.codeInsight.inline.completion.*
+import com.intellij.codeInsight.inline.completion.elements.InlineCompletionElement
 import com.intellij.codeInsight.inline.completion.elements.InlineCompletionGrayTextElement
-import com.intellij.codeInsight.inline.completion.suggestion.InlineCompletionSingleSuggestion
 import com.intellij.codeInsight.inline.completion.suggestion.InlineCompletionSuggestion
+import com.intellij.codeInsight.inline.completion.suggestion.InlineCompletionVariant
 import com.intellij.openapi.application.ApplicationInfo
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.application.readAction
 import com.intellij.openapi.client.ClientSessionsManager
-import com.intellij.openapi.command.WriteCommandAction
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.event.DocumentEvent
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.TextRange
-import com.intellij.util.concurrency.annotations.RequiresReadLock
 import com.sourcegraph.cody.agent.CodyAgentService
-import com.sourcegraph.cody.agent.protocol.AutocompleteResult
-import com.sourcegraph.cody.agent.protocol.CompletionItemParams
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteItem
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteResult
+import com.sourcegraph.cody.agent.protocol_generated.CompletionItemParams
 import com.sourcegraph.cody.statusbar.CodyStatusService.Companion.resetApplication
 import com.sourcegraph.cody.vscode.CancellationToken
 import com.sourcegraph.cody.vscode.InlineCompletionTriggerKind
@@ -27,8 +28,13 @@ import com.sourcegraph.utils.CodyEditorUtil.getTextRange
 import com.sourcegraph.utils.CodyEditorUtil.isImplicitAutocompleteEnabledForEditor
 import com.sourcegraph.utils.CodyFormatter
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.future.await
+import kotlinx.coroutines.withTimeoutOrNull
 
 class CodyInlineCompletionProvider : InlineCompletionProvider {
   private val logger = Logger.getInstance(CodyInlineCompletionProvider::class.java)
@@ -56,72 +62,92 @@ class CodyInlineCompletionProvider : InlineCompletionProvider {
           InlineCompletionTriggerKind.AUTOMATIC
         }
 
+    // Suspends without holding a thread. The agent request is cancelled together with this
+    // coroutine, which the platform cancels on the next keystroke, or when it times out.
     val completions =
-        fetchCompletions(project, editor, triggerKind, cancellationToken, lookupString)
-            .completeOnTimeout(null, 1, TimeUnit.SECONDS)
-            .get() ?: return InlineCompletionSuggestion.Empty
-
-    return InlineCompletionSingleSuggestion.build {
-      completions.items
-          .firstNotNullOfOrNull {
-            WriteCommandAction.runWriteCommandAction<InlineCompletionGrayTextElement?>(
-                editor.project) {
-                  val range = getTextRange(editor.document, it.range)
-                  val originalText = editor.document.getText(range)
-
-                  val formattedCompletionText: String =
-                      if (System.getProperty("cody.autocomplete.enableFormatting") == "false") {
-                        it.insertText
-                      } else {
-                        CodyFormatter.formatStringBasedOnDocument(
-                            it.insertText, project, editor.document, range, request.endOffset)
-                      }
-
-                  val completionText = formattedCompletionText.removeSuffix(originalText)
-                  if (completionText.trim().isBlank()) {
-                    null
-                  } else {
-
-                    CodyAgentService.withAgent(project) { agent ->
-                      agent.server.completionSuggested(CompletionItemParams(it.id))
-                    }
-
-                    InlineCompletionGrayTextElement(completionText)
-                  }
-                }
+        try {
+          withTimeoutOrNull(COMPLETION_TIMEOUT_MS) {
+            fetchCompletions(project, editor, triggerKind, cancellationToken, lookupString).await()
           }
-          ?.let { emit(it) }
+        } catch (e: CancellationException) {
+          cancellationToken.abort()
+          currentCoroutineContext().ensureActive()
+          // The request was cancelled on our side, e.g. because the file is ignored.
+          null
+        }
+    if (completions == null) {
+      cancellationToken.abort()
+      return InlineCompletionSuggestion.Empty
+    }
+
+    // Each item becomes a variant. The platform collects the first one right away and the others
+    // only when the user cycles to them, so only the shown variants are formatted.
+    val variants =
+        completions.items
+            .filter { it.insertText.isNotBlank() }
+            .map { item ->
+              InlineCompletionVariant.build { emitCompletion(project, editor, item, request) }
+            }
+    return object : InlineCompletionSuggestion {
+      override suspend fun getVariants(): List<InlineCompletionVariant> = variants
+    }
+  }
+
+  private suspend fun FlowCollector<InlineCompletionElement>.emitCompletion(
+      project: Project,
+      editor: Editor,
+      item: AutocompleteItem,
+      request: InlineCompletionRequest
+  ) {
+    // A write action cancels this read action by throwing ProcessCanceledException, which
+    // CodyFormatter rethrows, and `readAction` then restarts the block against the new document.
+    val completionText = readAction {
+      if (request.endOffset > editor.document.textLength) return@readAction ""
+      val range = getTextRange(editor.document, item.range)
+      val originalText = editor.document.getText(range)
+
+      val formattedCompletionText: String =
+          if (System.getProperty("cody.autocomplete.enableFormatting") == "false") {
+            item.insertText
+          } else {
+            CodyFormatter.formatStringBasedOnDocument(
+                item.insertText, project, editor.document, range, request.endOffset)
+          }
+      formattedCompletionText.removeSuffix(originalText)
+    }
+    if (completionText.isBlank()) return
+
+    CodyAgentService.withAgent(project) { agent ->
+      agent.server.autocomplete_completionSuggested(CompletionItemParams(item.id))
     }
+    emit(InlineCompletionGrayTextElement(completionText))
   }
 
-  @RequiresReadLock
   private fun fetchCompletions(
       project: Project,
       editor: Editor,
       triggerKind: InlineCompletionTriggerKind,
       cancellationToken: CancellationToken,
       lookupString: String?,
-  ): CompletableFuture<AutocompleteResult?> {
-    val textDocument = IntelliJTextDocument(editor, project)
-    val offset = ReadAction.compute<Int, Throwable> { editor.caretModel.offset }
-    val lineNumber = editor.document.getLineNumber(offset)
-    val caretPositionInLine = offset - editor.document.getLineStartOffset(lineNumber)
-    val originalText = editor.document.getText(TextRange(offset - caretPositionInLine, offset))
-
-    val result = CompletableFuture<AutocompleteResult?>()
-    Utils.triggerAutocompleteAsync(
-        project,
-        editor,
-        offset,
-        textDocument,
-        triggerKind,
-        cancellationToken,
-        lookupString,
-        originalText,
-        logger) { autocompleteResult ->
-          result.complete(autocompleteResult)
-        }
-    return result
+  ): CompletableFuture<out AutocompleteResult?> {
+    return ReadAction.compute<CompletableFuture<out AutocompleteResult?>, Throwable> {
+      val textDocument = IntelliJTextDocument(editor, project)
+      val offset = editor.caretModel.offset
+      val lineNumber = editor.document.getLineNumber(offset)
+      val caretPositionInLine = offset - editor.document.getLineStartOffset(lineNumber)
+      val originalText = editor.document.getText(TextRange(offset - caretPositionInLine, offset))
+
+      Utils.triggerAutocompleteAsync(
+          project,
+          editor,
+          offset,
+          textDocument,
+          triggerKind,
+          cancellationToken,
+          lookupString,
+          originalText,
+          logger) {}
+    }
   }
 
   private fun cancelCurrentJob(project: Project?) {
@@ -145,4 +171,8 @@ class CodyInlineCompletionProvider : InlineCompletionProvider {
         ConfigUtil.isCodyEnabled() &&
         ConfigUtil.isCodyAutocompleteEnabled()
   }
+
+  companion object {
+    private const val COMPLETION_TIMEOUT_MS = 1000L
+  }
 }
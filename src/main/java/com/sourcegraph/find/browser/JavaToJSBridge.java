@@ -7,24 +7,40 @@ import com.google.gson.JsonSyntaxException;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.ui.jcef.JBCefBrowserBase;
 import com.intellij.ui.jcef.JBCefJSQuery;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * Calls functions of the web app ({@code window.callJS}) and routes their results back.
+ *
+ * <p>JBCefJSQuery objects must be created before the browser is loaded, so all calls share one.
+ * Each call gets an ID which the page sends back in front of its result, so that any number of
+ * calls can be in flight at once without a thread waiting for each. Results are delivered on a
+ * bounded pool rather than on the JCEF thread receiving them. Calls that get no result within
+ * {@code cody.find.jsCallTimeoutMs} complete with {@code null}.
+ */
 public class JavaToJSBridge {
+  private static final Logger logger = Logger.getInstance(JavaToJSBridge.class);
+  private static final long CALL_TIMEOUT_MS = Long.getLong("cody.find.jsCallTimeoutMs", 10_000);
+  private static final Executor resultExecutor =
+      AppExecutorUtil.createBoundedApplicationPoolExecutor("Sourcegraph JavaToJSBridge", 1);
+
   private final JBCefBrowserBase browser;
   private final JBCefJSQuery query;
-  private final Lock lock;
-  private Function<String, JBCefJSQuery.Response> handler = null;
+  private final AtomicLong lastCallId = new AtomicLong();
+  private final Map<Long, CompletableFuture<JsonObject>> pendingCalls = new ConcurrentHashMap<>();
 
   public JavaToJSBridge(JBCefBrowserBase browser) {
     this.browser = browser;
     this.query = JBCefJSQuery.create(browser);
-    this.lock = new ReentrantLock();
+    this.query.addHandler(this::handleResult);
   }
 
   public void callJS(@NotNull String action, @Nullable JsonObject arguments) {
@@ -32,80 +48,63 @@ public class JavaToJSBridge {
   }
 
   /**
-   * @param result This is the way to get the result back to the caller from the thread started in
-   *     this method.
+   * @param result Completed with the result of the call, or with {@code null} if the result is not
+   *     a JSON object or doesn't arrive in time.
    */
   public void callJS(
       @NotNull String action,
       @Nullable JsonObject arguments,
       @Nullable CompletableFuture<JsonObject> result) {
-    // A separate thread is needed because the response handling uses the main thread,
-    // so if we did the JS call in the main thread and then waited, the response handler
-    // would never be called.
-    new Thread(
-            () -> {
-              Logger logger = Logger.getInstance(this.getClass());
-              // Reason for the locking:
-              // JBCefJSQuery objects MUST be created before the browser is loaded, otherwise an
-              // error is thrown.
-              // As there is only one JBCefJSQuery object, and we need to wait for the result of the
-              // last execution,
-              // we can only run one query at a time.
-              // If this ever becomes a bottleneck, we can create a pool of JBCefJSQuery objects and
-              // a counting semaphore.
-              lock.lock();
-
-              // This future is needed to communicate between this thread and the response handler
-              // thread.
-              CompletableFuture<Void> handlerCompletedFuture = new CompletableFuture<>();
+    long callId = lastCallId.incrementAndGet();
+    CompletableFuture<JsonObject> pendingCall = new CompletableFuture<>();
+    pendingCalls.put(callId, pendingCall);
+    pendingCall
+        .completeOnTimeout(null, CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        .thenAcceptAsync(
+            json -> {
+              if (pendingCalls.remove(callId) != null) {
+                logger.warn("No result from JS call '" + action + "' in " + CALL_TIMEOUT_MS + "ms");
+              }
+              if (result != null) {
+                result.complete(json);
+              }
+            },
+            resultExecutor);
 
-              String js =
-                  "window.callJS('"
-                      + action
-                      + "', '"
-                      + (arguments != null ? arguments.toString() : "null")
-                      + "', (result) => {"
-                      + "    "
-                      + query.inject("result")
-                      + "});";
+    String js =
+        "window.callJS('"
+            + action
+            + "', '"
+            + (arguments != null ? arguments.toString() : "null")
+            + "', (result) => {"
+            + "    "
+            + query.inject("'" + callId + ":' + result")
+            + "});";
+    browser.getCefBrowser().executeJavaScript(js, browser.getCefBrowser().getURL(), 0);
+  }
 
-              handler =
-                  responseAsString -> {
-                    query.removeHandler(handler);
-                    handler = null;
-                    try {
-                      JsonElement jsonElement = JsonParser.parseString(responseAsString);
-                      if (result != null) {
-                        result.complete(
-                            jsonElement.isJsonObject() ? jsonElement.getAsJsonObject() : null);
-                      }
-                    } catch (JsonSyntaxException e) {
-                      logger.warn("Invalid JSON: " + responseAsString);
-                      logger.warn(e);
-                      if (result != null) {
-                        result.complete(null);
-                      }
-                    } finally {
-                      handlerCompletedFuture.complete(null);
-                    }
-                    return null;
-                  };
-              query.addHandler(handler);
-              browser.getCefBrowser().executeJavaScript(js, browser.getCefBrowser().getURL(), 0);
+  private JBCefJSQuery.Response handleResult(@NotNull String response) {
+    int separator = response.indexOf(':');
+    CompletableFuture<JsonObject> pendingCall = null;
+    try {
+      pendingCall = pendingCalls.remove(Long.parseLong(response.substring(0, separator)));
+    } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
+      // Handled below.
+    }
+    if (pendingCall == null) {
+      logger.warn("Unexpected or late JS result: " + response);
+      return null;
+    }
 
-              try {
-                handlerCompletedFuture.get();
-              } catch (InterruptedException | ExecutionException e) {
-                logger.warn("Some problem occurred with the JS response thread.");
-                logger.warn(e);
-              } finally {
-                // It's only allowed to unlock the lock in the thread where it was locked.
-                // This is why `handlerCompletedFuture` is needed in the first place.
-                // Otherwise, the handler could simply unlock the lock, but that's not allowed in
-                // Java.
-                lock.unlock();
-              }
-            })
-        .start();
+    String resultAsString = response.substring(separator + 1);
+    try {
+      JsonElement jsonElement = JsonParser.parseString(resultAsString);
+      pendingCall.complete(jsonElement.isJsonObject() ? jsonElement.getAsJsonObject() : null);
+    } catch (JsonSyntaxException e) {
+      logger.warn("Invalid JSON: " + resultAsString);
+      logger.warn(e);
+      pendingCall.complete(null);
+    }
+    return null;
   }
 }
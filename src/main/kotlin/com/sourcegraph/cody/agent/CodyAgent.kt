@@ -2,10 +2,12 @@ package com.sourcegraph.cody.agent
 
 import com.intellij.ide.plugins.PluginManagerCore
 import com.intellij.openapi.application.ApplicationInfo
+import com.intellij.openapi.application.PathManager
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.extensions.PluginId
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.SystemInfoRt
+import com.intellij.openapi.util.io.FileUtil
 import com.intellij.util.net.HttpConfigurable
 import com.intellij.util.system.CpuArch
 import com.sourcegraph.cody.agent.protocol.*
@@ -15,12 +17,12 @@ import com.sourcegraph.cody.agent.protocol_generated.ClientInfo
 import com.sourcegraph.cody.agent.protocol_generated.ProtocolTypeAdapters
 import com.sourcegraph.cody.agent.protocol_generated.WebviewNativeConfig
 import com.sourcegraph.cody.ui.web.WebUIServiceWebviewProvider
-import com.sourcegraph.cody.vscode.CancellationToken
 import com.sourcegraph.config.ConfigUtil
 import java.io.*
 import java.net.Socket
 import java.net.URI
 import java.nio.file.*
+import java.security.MessageDigest
 import java.util.*
 import java.util.concurrent.*
 import org.eclipse.lsp4j.jsonrpc.Launcher
@@ -163,9 +165,7 @@ private constructor(
       if (ConfigUtil.shouldConnectToDebugAgent()) {
         return connectToDebugAgent()
       }
-      val token = CancellationToken()
-
-      val binaryPath = nodeBinary(token).absolutePath
+      val binaryPath = nodeBinary().absolutePath
       val jsonRpcArgs = arrayOf("api", "jsonrpc-stdio")
       val command: List<String> =
           if (System.getenv("CODY_DIR") != null) {
@@ -236,7 +236,6 @@ private constructor(
             logger.warn("Cody agent process exited with code $it")
           }
         }
-        token.abort()
       }
 
       // Redirect agent stderr into idea.log by buffering line by line into `logger.warn()`
@@ -287,6 +286,9 @@ private constructor(
         process: AgentConnection,
         client: CodyAgentClient
     ): Launcher<CodyAgentServer> {
+      val transport =
+          MeteredMessageTransport(
+              process.getInputStream(), process.getOutputStream(), traceWriter())
       return Launcher.Builder<CodyAgentServer>()
           .configureGson { gsonBuilder ->
             run {
@@ -306,10 +308,10 @@ private constructor(
             }
           }
           .setRemoteInterface(CodyAgentServer::class.java)
-          .traceMessages(traceWriter())
+          .wrapMessages(transport::wrap)
           .setExecutorService(executorService)
-          .setInput(process.getInputStream())
-          .setOutput(process.getOutputStream())
+          .setInput(transport.input)
+          .setOutput(transport.output)
           .setLocalService(client)
           .create()
     }
@@ -353,7 +355,7 @@ private constructor(
     }
 
     @Throws(CodyAgentException::class)
-    private fun nodeBinary(token: CancellationToken): File {
+    private fun nodeBinary(): File {
       val pluginPath =
           agentDirectory()
               ?: throw CodyAgentException("Sourcegraph Cody + Code Search plugin path not found")
@@ -361,31 +363,102 @@ private constructor(
       if (!Files.isRegularFile(binarySource)) {
         throw CodyAgentException("Node binary not found at path " + binarySource.toAbsolutePath())
       }
-      val binaryTarget = Files.createTempFile("cody-agent", binarySuffix())
       return try {
-        binaryTarget?.toFile()?.deleteOnExit()
-        token.onFinished {
-          // Important: delete the file from disk after the process exists
-          // Ideally, we should eventually replace this temporary file with a permanent location
-          // in the plugin directory.
-          Files.deleteIfExists(binaryTarget)
-        }
-        logger.info("Extracting Node binary to " + binaryTarget.toAbsolutePath())
-        Files.copy(binarySource, binaryTarget, StandardCopyOption.REPLACE_EXISTING)
-        val binary = binaryTarget.toFile()
-        if (binary.setExecutable(true)) {
-          binary
-        } else {
-          throw CodyAgentException("Failed to make Node process executable " + binary.absolutePath)
-        }
+        installedNodeBinary(binarySource).toFile()
       } catch (e: Exception) {
         logger.warn(e)
-        logger.info("Failed to create a copy of the Node binary, proceeding with $binarySource")
-        Files.deleteIfExists(binaryTarget)
+        logger.info("Failed to install a copy of the Node binary, proceeding with $binarySource")
         binarySource.toFile()
       }
     }
 
+    /**
+     * Returns a copy of the bundled Node binary in the IDE system directory, extracting it first if
+     * needed. The copy lives in a directory named after the plugin version and the size and
+     * modification time of the bundled binary, so it is shared by all projects and agent restarts
+     * and replaced whenever the plugin is updated.
+     *
+     * The copy is written to a temporary file, checked against the SHA-256 of the bundled binary
+     * and atomically moved in place. The checksum is recorded next to it, so it is only verified
+     * on extraction. Directories of other versions are removed after a successful install.
+     */
+    @Throws(IOException::class, CodyAgentException::class)
+    private fun installedNodeBinary(binarySource: Path): Path {
+      val runtimesDir = Paths.get(PathManager.getSystemPath(), "cody-agent", "node")
+      val runtimeDir = runtimesDir.resolve(nodeRuntimeKey(binarySource))
+      val binaryTarget = runtimeDir.resolve(binarySource.fileName)
+      val checksumFile = runtimeDir.resolve(binarySource.fileName.toString() + ".sha256")
+      if (Files.isRegularFile(checksumFile) &&
+          Files.isExecutable(binaryTarget) &&
+          Files.size(binaryTarget) == Files.size(binarySource)) {
+        return binaryTarget
+      }
+
+      Files.createDirectories(runtimeDir)
+      val tempFile = Files.createTempFile(runtimeDir, "node", ".tmp")
+      try {
+        logger.info("Extracting Node binary to " + binaryTarget.toAbsolutePath())
+        Files.copy(binarySource, tempFile, StandardCopyOption.REPLACE_EXISTING)
+        val checksum = sha256(binarySource)
+        if (sha256(tempFile) != checksum) {
+          throw CodyAgentException("Checksum mismatch for extracted Node binary $tempFile")
+        }
+        if (!tempFile.toFile().setExecutable(true)) {
+          throw CodyAgentException("Failed to make Node process executable $tempFile")
+        }
+        try {
+          Files.move(
+              tempFile,
+              binaryTarget,
+              StandardCopyOption.ATOMIC_MOVE,
+              StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: AtomicMoveNotSupportedException) {
+          Files.move(tempFile, binaryTarget, StandardCopyOption.REPLACE_EXISTING)
+        }
+        Files.writeString(checksumFile, checksum)
+      } finally {
+        Files.deleteIfExists(tempFile)
+      }
+
+      Files.list(runtimesDir).use { dirs ->
+        dirs
+            .filter { it != runtimeDir && Files.isDirectory(it) }
+            .forEach { oldDir ->
+              // Fails for binaries still used by agents of other IDE instances, which is fine: we
+              // try again after the next update.
+              if (!FileUtil.delete(oldDir.toFile())) {
+                logger.info("Unable to remove old Node runtime $oldDir")
+              }
+            }
+      }
+      return binaryTarget
+    }
+
+    private fun nodeRuntimeKey(binarySource: Path): String {
+      val fingerprint =
+          listOf(
+                  ConfigUtil.getPluginVersion(),
+                  binarySource.fileName.toString(),
+                  Files.size(binarySource),
+                  Files.getLastModifiedTime(binarySource).toMillis())
+              .joinToString("|")
+      val digest = MessageDigest.getInstance("SHA-256").digest(fingerprint.toByteArray())
+      return HexFormat.of().formatHex(digest, 0, 8)
+    }
+
+    private fun sha256(path: Path): String {
+      val digest = MessageDigest.getInstance("SHA-256")
+      Files.newInputStream(path).use { input ->
+        val buffer = ByteArray(64 * 1024)
+        while (true) {
+          val read = input.read(buffer)
+          if (read < 0) break
+          digest.update(buffer, 0, read)
+        }
+      }
+      return HexFormat.of().formatHex(digest.digest())
+    }
+
     private fun traceWriter(): PrintWriter? {
       val tracePath = System.getProperty("cody-agent.trace-path", "")
       if (tracePath.isNotEmpty()) {
@@ -393,7 +466,7 @@ private constructor(
         try {
           Files.createDirectories(trace.parent)
           return PrintWriter(
-              Files.newOutputStream(
+              Files.newBufferedWriter(
                   trace, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
         } catch (e: IOException) {
           logger.warn("unable to trace JSON-RPC debugging information to path $tracePath", e)
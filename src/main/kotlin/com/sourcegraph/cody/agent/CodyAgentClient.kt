@@ -28,6 +28,7 @@ import com.sourcegraph.cody.agent.protocol_generated.Window_DidChangeContextPara
 import com.sourcegraph.cody.agent.protocol_generated.WorkspaceEditParams
 import com.sourcegraph.cody.auth.CodyAccount
 import com.sourcegraph.cody.auth.SourcegraphServerPath
+import com.sourcegraph.cody.autocomplete.AutocompleteResultCache
 import com.sourcegraph.cody.edit.EditService
 import com.sourcegraph.cody.edit.lenses.LensesService
 import com.sourcegraph.cody.error.CodyConsole
@@ -97,14 +98,7 @@ class CodyAgentClient(private val project: Project, private val webview: NativeW
 
   @JsonRequest("textDocument/edit")
   fun textDocument_edit(params: TextDocumentEditParams): CompletableFuture<Boolean> {
-    return acceptOnEventThreadAndGet {
-      try {
-        EditService.getInstance(project).performTextEdits(params.uri, params.edits)
-      } catch (e: RuntimeException) {
-        logger.error(e)
-        false
-      }
-    }
+    return EditService.getInstance(project).queueTextEdits(params.uri, params.edits)
   }
 
   @JsonRequest("textDocument/show")
@@ -259,12 +253,16 @@ class CodyAgentClient(private val project: Project, private val webview: NativeW
   @JsonNotification("window/didChangeContext")
   fun window_didChangeContext(params: Window_DidChangeContextParams) {
     if (params.key == "cody.activated") {
+      // The agent may have signed in or out, which changes the credentials it stored.
+      CodyAccount.invalidateCache()
+      AutocompleteResultCache.getInstance(project).clear()
       CodyAccount.setActivated(params.value?.toBoolean() ?: false)
       CodyStatusService.notifyApplication(project, CodyStatus.CodyNotSignedIn)
     }
     if (params.key == "cody.serverEndpoint") {
       val endpoint = params.value ?: return
       CodyAccount.setActiveAccount(CodyAccount(SourcegraphServerPath(endpoint)))
+      AutocompleteResultCache.getInstance(project).clear()
       CodyStatusService.resetApplication(project)
     }
   }
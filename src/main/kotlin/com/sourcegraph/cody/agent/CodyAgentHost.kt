@@ -0,0 +1,49 @@
+package com.sourcegraph.cody.agent
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import java.util.concurrent.Semaphore
+
+/**
+ * Application-wide coordination of Cody agent processes.
+ *
+ * Every project still runs its own agent: `initialize` binds a process to a single workspace root,
+ * and webviews, ignore policies and configuration are all scoped to that client, which also keeps a
+ * crashing agent from taking down other projects. What the host does control is how many agents
+ * start at the same time. Reopening an IDE with several projects would otherwise spawn all Node
+ * processes and run their `initialize` requests in parallel, competing for CPU with indexing.
+ */
+@Service(Service.Level.APP)
+class CodyAgentHost {
+
+  private val maxConcurrentStarts =
+      System.getProperty("cody.agent.maxConcurrentStarts", "2").toInt().coerceAtLeast(1)
+
+  private val startupPermits = Semaphore(maxConcurrentStarts, /* fair = */ true)
+
+  /**
+   * Runs [start] once fewer than `cody.agent.maxConcurrentStarts` agents are starting, in the order
+   * in which projects asked. [start] is expected to block until the agent is initialized or failed.
+   */
+  fun <T> withStartupPermit(start: () -> T): T {
+    if (!startupPermits.tryAcquire()) {
+      logger.info("Waiting for other Cody agents to start")
+      startupPermits.acquire()
+    }
+    try {
+      return start()
+    } finally {
+      startupPermits.release()
+    }
+  }
+
+  companion object {
+    private val logger = Logger.getInstance(CodyAgentHost::class.java)
+
+    @JvmStatic
+    fun getInstance(): CodyAgentHost {
+      return service<CodyAgentHost>()
+    }
+  }
+}
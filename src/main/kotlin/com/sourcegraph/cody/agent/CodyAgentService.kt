@@ -10,8 +10,11 @@ import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.project.Project
 import com.intellij.util.net.HttpConfigurable
+import com.sourcegraph.cody.autocomplete.AutocompleteResultCache
 import com.sourcegraph.cody.config.CodyApplicationSettings
+import com.sourcegraph.cody.inspections.DiagnosticsPublisher
 import com.sourcegraph.cody.listeners.CodyFileEditorListener
+import com.sourcegraph.cody.listeners.DocumentSyncQueue
 import com.sourcegraph.cody.statusbar.CodyStatusService
 import com.sourcegraph.cody.ui.web.WebUIService
 import com.sourcegraph.common.CodyBundle
@@ -79,14 +82,16 @@ class CodyAgentService(private val project: Project) : Disposable {
   fun startAgent(project: Project, secondsTimeout: Long = 45): CompletableFuture<CodyAgent> {
     ApplicationManager.getApplication().executeOnPooledThread {
       try {
-        val future =
-            CodyAgent.create(project).exceptionally { err ->
-              val msg = "Creating agent unsuccessful: ${err.localizedMessage}"
-              logger.error(msg)
-              throw (CodyAgentException(msg))
+        val agent =
+            CodyAgentHost.getInstance().withStartupPermit {
+              val future =
+                  CodyAgent.create(project).exceptionally { err ->
+                    val msg = "Creating agent unsuccessful: ${err.localizedMessage}"
+                    logger.error(msg)
+                    throw (CodyAgentException(msg))
+                  }
+              future.get(secondsTimeout, TimeUnit.SECONDS)
             }
-
-        val agent = future.get(secondsTimeout, TimeUnit.SECONDS)
         if (!agent.isConnected()) {
           val msg = "Failed to connect to agent Cody agent"
           logger.error(msg)
@@ -131,6 +136,10 @@ class CodyAgentService(private val project: Project) : Disposable {
       return CompletableFuture.failedFuture(e)
     } finally {
       codyAgent = CompletableFuture()
+      project?.let { DocumentSyncQueue.getInstance(it).reset() }
+      // Completion IDs are only known to the agent that returned them.
+      project?.let { AutocompleteResultCache.getInstance(it).clear() }
+      project?.let { DiagnosticsPublisher.getInstance(it).reset() }
       project?.let { CodyStatusService.resetApplication(it) }
     }
   }
@@ -0,0 +1,190 @@
+package com.sourcegraph.cody.agent
+
+import com.google.common.io.CountingInputStream
+import com.google.common.io.CountingOutputStream
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.PrintWriter
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import org.eclipse.lsp4j.jsonrpc.MessageConsumer
+import org.eclipse.lsp4j.jsonrpc.json.StreamMessageConsumer
+import org.eclipse.lsp4j.jsonrpc.messages.Message
+import org.eclipse.lsp4j.jsonrpc.messages.NotificationMessage
+import org.eclipse.lsp4j.jsonrpc.messages.RequestMessage
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseMessage
+
+/**
+ * Per-method statistics of the JSON-RPC traffic with all agents: message counts, bytes on the wire
+ * and, for requests in either direction, a histogram of the time until the response.
+ */
+internal object JsonRpcMetrics {
+  /** Upper bounds of the latency buckets; the last bucket holds everything slower. */
+  private val LATENCY_BUCKETS_MS = longArrayOf(10, 50, 100, 500, 1000, 5000)
+
+  class MethodStats {
+    val sent = AtomicLong()
+    val received = AtomicLong()
+    val bytesSent = AtomicLong()
+    val bytesReceived = AtomicLong()
+    val latencies = AtomicLongArray(LATENCY_BUCKETS_MS.size + 1)
+  }
+
+  val stats = ConcurrentHashMap<String, MethodStats>()
+
+  private fun statsFor(method: String) = stats.computeIfAbsent(method) { MethodStats() }
+
+  fun recordSent(method: String, bytes: Long) {
+    val methodStats = statsFor(method)
+    methodStats.sent.incrementAndGet()
+    methodStats.bytesSent.addAndGet(bytes)
+  }
+
+  fun recordReceived(method: String, bytes: Long) {
+    val methodStats = statsFor(method)
+    methodStats.received.incrementAndGet()
+    methodStats.bytesReceived.addAndGet(bytes)
+  }
+
+  fun recordLatency(method: String, nanos: Long) {
+    val millis = nanos / 1_000_000
+    val bucket =
+        LATENCY_BUCKETS_MS.indexOfFirst { millis < it }.takeIf { it != -1 }
+            ?: LATENCY_BUCKETS_MS.size
+    statsFor(method).latencies.incrementAndGet(bucket)
+  }
+
+  fun totalMessages(): Long = stats.values.sumOf { it.sent.get() + it.received.get() }
+
+  fun totalBytes(): Long = stats.values.sumOf { it.bytesSent.get() + it.bytesReceived.get() }
+
+  /** Formats the statistics as a table, methods with the most traffic first. */
+  fun dump(): String {
+    val header =
+        listOf("method", "sent", "received", "bytes sent", "bytes received") +
+            LATENCY_BUCKETS_MS.map { "<${it}ms" } +
+            ">=${LATENCY_BUCKETS_MS.last()}ms"
+    val rows =
+        stats.entries
+            .sortedByDescending { (_, it) -> it.bytesSent.get() + it.bytesReceived.get() }
+            .map { (method, it) ->
+              listOf(
+                  method,
+                  it.sent.get().toString(),
+                  it.received.get().toString(),
+                  it.bytesSent.get().toString(),
+                  it.bytesReceived.get().toString()) +
+                  (0 until it.latencies.length()).map { i -> it.latencies.get(i).toString() }
+            }
+    return (listOf(header) + rows).joinToString("\n") { it.joinToString("\t") }
+  }
+
+  fun reset() = stats.clear()
+}
+
+/**
+ * The streams and message wrapper of one agent connection.
+ *
+ * Both directions are buffered: lsp4j reads the `Content-Length` header byte by byte and writes the
+ * header and the content separately, followed by a flush per message. Byte counts are taken between
+ * the buffers and lsp4j, so they match the framed messages exactly.
+ */
+internal class MeteredMessageTransport(
+    input: InputStream,
+    output: OutputStream,
+    private val trace: PrintWriter?
+) {
+  private val countingInput = CountingInputStream(BufferedInputStream(input, BUFFER_SIZE))
+  private val countingOutput = CountingOutputStream(BufferedOutputStream(output, BUFFER_SIZE))
+
+  val input: InputStream
+    get() = countingInput
+
+  val output: OutputStream
+    get() = countingOutput
+
+  private class PendingRequest(val method: String, val startNanos: Long)
+
+  private val sentRequests = ConcurrentHashMap<String, PendingRequest>()
+  private val receivedRequests = ConcurrentHashMap<String, PendingRequest>()
+
+  // Only accessed by the lsp4j reader thread.
+  private var lastInputCount = 0L
+  private val outputLock = Any()
+
+  /**
+   * Wraps lsp4j's message consumers, see `Launcher.Builder.wrapMessages`. The consumer writing to
+   * the output stream handles outgoing messages, any other one incoming messages.
+   */
+  fun wrap(consumer: MessageConsumer): MessageConsumer =
+      if (consumer is StreamMessageConsumer) {
+        MessageConsumer { message -> send(consumer, message) }
+      } else {
+        MessageConsumer { message -> receive(consumer, message) }
+      }
+
+  private fun send(consumer: MessageConsumer, message: Message) {
+    val bytes =
+        synchronized(outputLock) {
+          val before = countingOutput.count
+          consumer.consume(message)
+          countingOutput.count - before
+        }
+    val method =
+        when (message) {
+          is RequestMessage -> {
+            sentRequests[message.id] = PendingRequest(message.method, System.nanoTime())
+            message.method
+          }
+          is ResponseMessage -> completed(receivedRequests, message.id)
+          is NotificationMessage -> message.method
+          else -> UNKNOWN_METHOD
+        }
+    JsonRpcMetrics.recordSent(method, bytes)
+    trace("Sending", method, message)
+  }
+
+  private fun receive(consumer: MessageConsumer, message: Message) {
+    val count = countingInput.count
+    val bytes = count - lastInputCount
+    lastInputCount = count
+    val method =
+        when (message) {
+          is RequestMessage -> {
+            receivedRequests[message.id] = PendingRequest(message.method, System.nanoTime())
+            message.method
+          }
+          is ResponseMessage -> completed(sentRequests, message.id)
+          is NotificationMessage -> message.method
+          else -> UNKNOWN_METHOD
+        }
+    JsonRpcMetrics.recordReceived(method, bytes)
+    trace("Received", method, message)
+    consumer.consume(message)
+  }
+
+  private fun completed(requests: MutableMap<String, PendingRequest>, id: String?): String {
+    val request = id?.let { requests.remove(it) } ?: return UNKNOWN_METHOD
+    JsonRpcMetrics.recordLatency(request.method, System.nanoTime() - request.startNanos)
+    return request.method
+  }
+
+  private fun trace(direction: String, method: String, message: Message) {
+    val trace = trace ?: return
+    synchronized(trace) {
+      trace.println("[Trace - ${Instant.now()}] $direction '$method'")
+      trace.println(message)
+      trace.println()
+      trace.flush()
+    }
+  }
+
+  companion object {
+    private const val BUFFER_SIZE = 64 * 1024
+    private const val UNKNOWN_METHOD = "<unknown>"
+  }
+}
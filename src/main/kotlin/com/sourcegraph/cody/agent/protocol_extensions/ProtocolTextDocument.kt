@@ -163,6 +163,29 @@ object ProtocolTextDocumentExt {
         testing = getTestingParams(uri = uri, content = content, selection = selection))
   }
 
+  /**
+   * Like [fromVirtualEditorFile], but without copying the document content, which is the expensive
+   * part for large files. Add it with [withContent], which doesn't need the EDT.
+   */
+  @RequiresEdt
+  fun fromVirtualEditorFileWithoutContent(
+      editor: Editor,
+      file: VirtualFile,
+  ): ProtocolTextDocument {
+    return ProtocolTextDocument(
+        uri = uriFor(file),
+        selection = getSelection(editor),
+        visibleRange = getVisibleRange(editor))
+  }
+
+  fun withContent(textDocument: ProtocolTextDocument, content: String?): ProtocolTextDocument {
+    return textDocument.copy(
+        content = content,
+        testing =
+            getTestingParams(
+                uri = textDocument.uri, content = content, selection = textDocument.selection))
+  }
+
   fun fromVirtualFile(file: VirtualFile): ProtocolTextDocument {
     val content = FileDocumentManager.getInstance().getDocument(file)?.text
     val uri = uriFor(file)
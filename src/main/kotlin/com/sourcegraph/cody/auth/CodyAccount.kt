@@ -1,9 +1,7 @@
 package com.sourcegraph.cody.auth
 
 import com.intellij.credentialStore.CredentialAttributes
-import com.intellij.credentialStore.Credentials
 import com.intellij.credentialStore.generateServiceName
-import com.intellij.ide.passwordSafe.PasswordSafe
 import com.sourcegraph.config.ConfigUtil
 
 data class CodyAccount(val server: SourcegraphServerPath) {
@@ -11,11 +9,11 @@ data class CodyAccount(val server: SourcegraphServerPath) {
   fun isDotcomAccount(): Boolean = server.url.lowercase().startsWith(ConfigUtil.DOTCOM_URL)
 
   fun getToken(): String? {
-    return PasswordSafe.instance.get(credentialAttributes(server.url))?.getPasswordAsString()
+    return CodyCredentialCache.get(credentialAttributes(server.url))
   }
 
   fun storeToken(token: String?) {
-    PasswordSafe.instance.set(credentialAttributes(server.url), Credentials(user = "", token))
+    CodyCredentialCache.set(credentialAttributes(server.url), token)
   }
 
   companion object {
@@ -35,16 +33,17 @@ data class CodyAccount(val server: SourcegraphServerPath) {
     }
 
     fun getActiveAccount(): CodyAccount? {
-      val serverUrl =
-          PasswordSafe.instance
-              .get(credentialAttributes(ACTIVE_ACCOUNT_MARKER))
-              ?.getPasswordAsString()
+      val serverUrl = CodyCredentialCache.get(credentialAttributes(ACTIVE_ACCOUNT_MARKER))
       return if (serverUrl == null) null else CodyAccount(SourcegraphServerPath(serverUrl))
     }
 
     fun setActiveAccount(account: CodyAccount?) {
-      PasswordSafe.instance.set(
-          credentialAttributes(ACTIVE_ACCOUNT_MARKER), Credentials(user = "", account?.server?.url))
+      CodyCredentialCache.set(credentialAttributes(ACTIVE_ACCOUNT_MARKER), account?.server?.url)
+    }
+
+    /** Makes the next reads of accounts and tokens go to the password safe again. */
+    fun invalidateCache() {
+      CodyCredentialCache.invalidate()
     }
   }
 }
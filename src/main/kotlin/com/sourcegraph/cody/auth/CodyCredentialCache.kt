@@ -0,0 +1,58 @@
+package com.sourcegraph.cody.auth
+
+import com.intellij.credentialStore.CredentialAttributes
+import com.intellij.credentialStore.Credentials
+import com.intellij.ide.passwordSafe.PasswordSafe
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-memory copy of the values [CodyAccount] keeps in [PasswordSafe].
+ *
+ * The active account is looked up on every keystroke, and depending on the platform the password
+ * safe is a native keyring reached over D-Bus or a KeePass database, where a single read can take
+ * milliseconds. Values are read once and kept until they are written through this cache or
+ * [invalidate]d. Absent values are only kept for `cody.credentials.absentTtlMs`: the keyring may
+ * still be locked when the IDE starts, or another IDE instance may store a token meanwhile.
+ */
+internal object CodyCredentialCache {
+  val keyringReads = AtomicLong()
+  val cacheHits = AtomicLong()
+
+  private class Entry(val password: String?, val readAtMs: Long)
+
+  private val absentTtlMs = System.getProperty("cody.credentials.absentTtlMs", "5000").toLong()
+  private val passwords = ConcurrentHashMap<String, Entry>()
+
+  fun get(attributes: CredentialAttributes): String? {
+    val cached = passwords[attributes.serviceName]
+    if (cached != null &&
+        (cached.password != null || System.currentTimeMillis() - cached.readAtMs < absentTtlMs)) {
+      cacheHits.incrementAndGet()
+      return cached.password
+    }
+    keyringReads.incrementAndGet()
+    val password = PasswordSafe.instance.get(attributes)?.getPasswordAsString()
+    // A concurrent `set` wins over a value read before it.
+    val entry = Entry(password, System.currentTimeMillis())
+    if (cached == null) {
+      passwords.putIfAbsent(attributes.serviceName, entry)
+    } else {
+      passwords.replace(attributes.serviceName, cached, entry)
+    }
+    return password
+  }
+
+  fun set(attributes: CredentialAttributes, password: String?) {
+    PasswordSafe.instance.set(attributes, Credentials(user = "", password))
+    passwords[attributes.serviceName] = Entry(password, System.currentTimeMillis())
+  }
+
+  /** Drops all cached values, so that they are read from the password safe again. */
+  fun invalidate() = passwords.clear()
+
+  fun resetStats() {
+    keyringReads.set(0)
+    cacheHits.set(0)
+  }
+}
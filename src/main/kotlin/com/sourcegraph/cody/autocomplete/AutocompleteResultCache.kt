@@ -0,0 +1,142 @@
+package com.sourcegraph.cody.autocomplete
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.project.Project
+import com.intellij.util.concurrency.annotations.RequiresReadLock
+import com.intellij.util.containers.SLRUMap
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteResult
+import com.sourcegraph.cody.agent.protocol_generated.Position
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Bounded LRU cache of autocomplete results, keyed by the document, the line and the text around
+ * the caret where the completion was requested. Hashes are only used to find candidates: a hit
+ * also requires the line prefix, the line suffix and the lines around the caret to be equal to the
+ * ones the result was computed for.
+ *
+ * When the user types out the text a suggestion proposed, the line prefix grows by the typed
+ * characters while the line suffix stays the same. Lookups therefore also probe shorter prefixes
+ * (up to [MAX_TYPE_THROUGH] characters back) and trim the typed text off the cached suggestion, so
+ * the remainder can be rendered without a round-trip to the agent.
+ */
+@Service(Service.Level.PROJECT)
+class AutocompleteResultCache {
+
+  private data class CacheKey(
+      val documentUrl: String,
+      val line: Long,
+      val prefixLength: Int,
+      val prefixHash: Int,
+      val suffixHash: Int
+  )
+
+  private class CacheEntry(
+      val linePrefix: String,
+      val lineSuffix: String,
+      val surroundingLines: String,
+      val result: AutocompleteResult
+  )
+
+  private val cacheSize = System.getProperty("cody.autocomplete.cache.size", "50").toInt()
+  private val cache = SLRUMap<CacheKey, CacheEntry>(cacheSize, cacheSize)
+
+  val hits = AtomicLong()
+  val misses = AtomicLong()
+
+  fun put(
+      documentUrl: String,
+      position: Position,
+      linePrefix: String,
+      lineSuffix: String,
+      surroundingLines: String,
+      result: AutocompleteResult
+  ) {
+    if (result.items.isEmpty()) return
+    val key =
+        CacheKey(
+            documentUrl,
+            position.line,
+            linePrefix.length,
+            linePrefix.hashCode(),
+            lineSuffix.hashCode())
+    synchronized(cache) {
+      cache.put(key, CacheEntry(linePrefix, lineSuffix, surroundingLines, result))
+    }
+  }
+
+  fun get(
+      documentUrl: String,
+      position: Position,
+      linePrefix: String,
+      lineSuffix: String,
+      surroundingLines: String
+  ): AutocompleteResult? {
+    // `String.hashCode` is computed as `h = 31 * h + c`, so the hashes of all prefixes of the line
+    // can be computed in a single pass without allocating substrings.
+    val prefixHashes = IntArray(linePrefix.length + 1)
+    for (i in linePrefix.indices) {
+      prefixHashes[i + 1] = 31 * prefixHashes[i] + linePrefix[i].code
+    }
+    val suffixHash = lineSuffix.hashCode()
+
+    synchronized(cache) {
+      for (length in linePrefix.length downTo max(0, linePrefix.length - MAX_TYPE_THROUGH)) {
+        val key = CacheKey(documentUrl, position.line, length, prefixHashes[length], suffixHash)
+        val entry = cache.get(key) ?: continue
+        if (!linePrefix.startsWith(entry.linePrefix) ||
+            entry.lineSuffix != lineSuffix ||
+            entry.surroundingLines != surroundingLines) {
+          continue
+        }
+
+        val typed = linePrefix.substring(length)
+        val requestPosition = Position(position.line, length.toLong())
+        val items =
+            entry.result.items
+                .mapNotNull { item ->
+                  AutocompleteScheduler.advance(item, requestPosition, entry.linePrefix, typed)
+                }
+                .filter { it.insertText.isNotBlank() }
+        if (items.isNotEmpty()) {
+          hits.incrementAndGet()
+          return entry.result.copy(items = items)
+        }
+      }
+    }
+    misses.incrementAndGet()
+    return null
+  }
+
+  fun clear() {
+    synchronized(cache) { cache.clear() }
+  }
+
+  companion object {
+    private const val MAX_TYPE_THROUGH = 64
+    private const val SURROUNDING_LINES = 2
+
+    /**
+     * Returns the [SURROUNDING_LINES] lines before and after [line], which a cached result must
+     * have been computed with as well.
+     */
+    @RequiresReadLock
+    fun surroundingLines(document: Document, line: Int): String {
+      val first = max(0, line - SURROUNDING_LINES)
+      val last = max(line, min(document.lineCount - 1, line + SURROUNDING_LINES))
+      val text = document.immutableCharSequence
+      val before =
+          text.subSequence(document.getLineStartOffset(first), document.getLineStartOffset(line))
+      val after = text.subSequence(document.getLineEndOffset(line), document.getLineEndOffset(last))
+      return "$before\u0000$after"
+    }
+
+    @JvmStatic
+    fun getInstance(project: Project): AutocompleteResultCache {
+      return project.service<AutocompleteResultCache>()
+    }
+  }
+}
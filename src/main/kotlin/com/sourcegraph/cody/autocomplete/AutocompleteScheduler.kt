@@ -0,0 +1,316 @@
+package com.sourcegraph.cody.autocomplete
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.util.Key
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.concurrency.annotations.RequiresEdt
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteItem
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteResult
+import com.sourcegraph.cody.agent.protocol_generated.Position
+import com.sourcegraph.cody.agent.protocol_generated.Range
+import com.sourcegraph.cody.vscode.CancellationToken
+import com.sourcegraph.cody.vscode.InlineCompletionTriggerKind
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import org.jetbrains.annotations.VisibleForTesting
+
+typealias AutocompleteExecutor =
+    (AutocompleteScheduler.AutocompleteRequest, CancellationToken, (AutocompleteResult) -> Unit) ->
+    CompletableFuture<*>
+
+/**
+ * Coalesces autocomplete triggers per editor before they reach the agent.
+ *
+ * The caret and document listeners both trigger autocomplete for the same keystroke, and fast
+ * typing produces a trigger per character. The scheduler:
+ * - debounces automatic triggers within a window adapted to the typing cadence of the editor,
+ * - drops requests that duplicate the pending or in-flight one (same document, offset and version),
+ * - keeps an in-flight request alive while the user types characters on the same line, and
+ *   re-renders its result for the new caret position if the typed text matches the suggestion.
+ *
+ * Rendering is bound to the [CancellationToken] of the latest trigger, so clearing suggestions
+ * still cancels the agent request unless a new trigger takes it over.
+ */
+class AutocompleteScheduler(
+    private val execute: AutocompleteExecutor,
+    private val render: (AutocompleteRequest, AutocompleteResult, CancellationToken) -> Unit
+) {
+
+  data class AutocompleteRequest(
+      val editor: Editor,
+      val offset: Int,
+      val documentVersion: Long,
+      val textLength: Int,
+      val position: Position,
+      /** Text of the line from its start up to [offset]. */
+      val linePrefix: String,
+      /** Text of the line from [offset] up to its end. */
+      val lineSuffix: String,
+      /** See [AutocompleteResultCache.surroundingLines]. */
+      val surroundingLines: String,
+      val triggerKind: InlineCompletionTriggerKind,
+      val lookupString: String?
+  ) {
+    fun isDuplicateOf(other: AutocompleteRequest): Boolean {
+      return editor.document == other.editor.document &&
+          offset == other.offset &&
+          documentVersion == other.documentVersion &&
+          lookupString == other.lookupString
+    }
+
+    /**
+     * Returns the characters typed since [earlier] if this request only differs from it by an
+     * insertion at the caret on the same line, or null otherwise.
+     */
+    fun typedSince(earlier: AutocompleteRequest): String? {
+      if (editor.document != earlier.editor.document ||
+          lookupString != null ||
+          earlier.lookupString != null ||
+          position.line != earlier.position.line ||
+          offset <= earlier.offset ||
+          textLength - earlier.textLength != offset - earlier.offset ||
+          !linePrefix.startsWith(earlier.linePrefix)) {
+        return null
+      }
+      return linePrefix.substring(earlier.linePrefix.length)
+    }
+  }
+
+  private class InFlight(val request: AutocompleteRequest, val token: CancellationToken)
+
+  /** The trigger that should receive the in-flight result, and what was typed since it was sent. */
+  private class Target(
+      val request: AutocompleteRequest,
+      val token: CancellationToken,
+      val typedAhead: String
+  )
+
+  private class EditorState {
+    var pending: ScheduledFuture<*>? = null
+    var pendingRequest: AutocompleteRequest? = null
+    var inFlight: InFlight? = null
+    var target: Target? = null
+    var lastTriggerMs = 0L
+    var averageIntervalMs = MIN_DEBOUNCE_MS.toDouble()
+  }
+
+  val requestsSent = AtomicLong()
+  val duplicatesDropped = AtomicLong()
+  val inFlightReused = AtomicLong()
+
+  fun resetStats() {
+    requestsSent.set(0)
+    duplicatesDropped.set(0)
+    inFlightReused.set(0)
+  }
+
+  @RequiresEdt
+  fun schedule(request: AutocompleteRequest, renderToken: CancellationToken) {
+    val state =
+        request.editor.getUserData(STATE_KEY)
+            ?: EditorState().also { request.editor.putUserData(STATE_KEY, it) }
+
+    synchronized(state) {
+      val delayMs = nextDebounceMs(state)
+      val inFlight = state.inFlight
+      val typedAhead =
+          if (request.triggerKind == InlineCompletionTriggerKind.AUTOMATIC) {
+            inFlight?.request?.let { request.typedSince(it) }
+          } else {
+            null
+          }
+      if (state.pendingRequest?.isDuplicateOf(request) == true ||
+          inFlight?.request?.isDuplicateOf(request) == true) {
+        duplicatesDropped.incrementAndGet()
+        state.target = Target(request, renderToken, typedAhead = "")
+      } else if (typedAhead != null) {
+        cancelPending(state)
+        state.target = Target(request, renderToken, typedAhead)
+      } else {
+        cancelPending(state)
+        cancelInFlight(state)
+        state.target = Target(request, renderToken, typedAhead = "")
+        if (request.triggerKind == InlineCompletionTriggerKind.INVOKE) {
+          fire(state, request)
+        } else {
+          state.pendingRequest = request
+          state.pending =
+              AppExecutorUtil.getAppScheduledExecutorService()
+                  .schedule(
+                      {
+                        ApplicationManager.getApplication().invokeLater {
+                          firePending(state, request)
+                        }
+                      },
+                      delayMs,
+                      TimeUnit.MILLISECONDS)
+        }
+      }
+    }
+
+    // Clearing suggestions cancels the render token. Unless another trigger takes over the pending
+    // or in-flight request in the same EDT event, we cancel it as well.
+    renderToken.onCancellationRequested {
+      ApplicationManager.getApplication().invokeLater { onTargetCancelled(state, renderToken) }
+    }
+  }
+
+  /**
+   * Adapts the debounce window to the average interval between keystrokes, ignoring triggers that
+   * belong to the same keystroke and long pauses.
+   */
+  private fun nextDebounceMs(state: EditorState): Long {
+    val now = System.currentTimeMillis()
+    val interval = now - state.lastTriggerMs
+    state.lastTriggerMs = now
+    if (interval in SAME_KEYSTROKE_MS..PAUSE_MS) {
+      state.averageIntervalMs = 0.8 * state.averageIntervalMs + 0.2 * interval
+    }
+    return state.averageIntervalMs.toLong().coerceIn(MIN_DEBOUNCE_MS, maxDebounceMs)
+  }
+
+  @RequiresEdt
+  private fun firePending(state: EditorState, request: AutocompleteRequest) {
+    synchronized(state) {
+      if (state.pendingRequest !== request) return
+      state.pending = null
+      state.pendingRequest = null
+      if (request.editor.isDisposed ||
+          request.editor.document.modificationStamp != request.documentVersion) {
+        return
+      }
+      fire(state, request)
+    }
+  }
+
+  private fun fire(state: EditorState, request: AutocompleteRequest) {
+    val inFlight = InFlight(request, CancellationToken())
+    state.inFlight = inFlight
+    requestsSent.incrementAndGet()
+    execute(request, inFlight.token) { result -> deliver(state, inFlight, result) }
+        .whenComplete { _, _ -> onFinished(state, inFlight) }
+  }
+
+  private fun deliver(state: EditorState, inFlight: InFlight, result: AutocompleteResult) {
+    val target =
+        synchronized(state) {
+          if (state.inFlight !== inFlight) return
+          state.inFlight = null
+          state.target
+        } ?: return
+    if (target.token.isCancelled) return
+
+    if (target.typedAhead.isEmpty()) {
+      render(target.request, result, target.token)
+      return
+    }
+
+    val sent = inFlight.request
+    val items =
+        result.items.mapNotNull { advance(it, sent.position, sent.linePrefix, target.typedAhead) }
+    if (items.isEmpty()) {
+      ApplicationManager.getApplication().invokeLater { refire(state, target) }
+    } else {
+      inFlightReused.incrementAndGet()
+      render(target.request, result.copy(items = items), target.token)
+    }
+  }
+
+  /** Called when the request finished without [deliver] consuming it (error, timeout, cancel). */
+  private fun onFinished(state: EditorState, inFlight: InFlight) {
+    val target =
+        synchronized(state) {
+          if (state.inFlight !== inFlight) return
+          state.inFlight = null
+          state.target
+        } ?: return
+    if (target.typedAhead.isNotEmpty() && !target.token.isCancelled) {
+      ApplicationManager.getApplication().invokeLater { refire(state, target) }
+    }
+  }
+
+  @RequiresEdt
+  private fun refire(state: EditorState, target: Target) {
+    synchronized(state) {
+      if (state.target !== target ||
+          target.token.isCancelled ||
+          state.inFlight != null ||
+          state.pendingRequest != null ||
+          target.request.editor.isDisposed ||
+          target.request.editor.document.modificationStamp != target.request.documentVersion) {
+        return
+      }
+      state.target = Target(target.request, target.token, typedAhead = "")
+      fire(state, target.request)
+    }
+  }
+
+  @RequiresEdt
+  private fun onTargetCancelled(state: EditorState, token: CancellationToken) {
+    synchronized(state) {
+      if (state.target?.token !== token) return
+      state.target = null
+      cancelPending(state)
+      cancelInFlight(state)
+    }
+  }
+
+  private fun cancelPending(state: EditorState) {
+    state.pending?.cancel(false)
+    state.pending = null
+    state.pendingRequest = null
+  }
+
+  private fun cancelInFlight(state: EditorState) {
+    state.inFlight?.token?.abort()
+    state.inFlight = null
+  }
+
+  companion object {
+    private val STATE_KEY = Key.create<EditorState>("cody.autocompleteSchedulerState")
+
+    private const val MIN_DEBOUNCE_MS = 15L
+    private const val SAME_KEYSTROKE_MS = 5L
+    private const val PAUSE_MS = 1000L
+    private val maxDebounceMs =
+        System.getProperty("cody.autocomplete.debounce.max", "120").toLong()
+
+    /**
+     * Adjusts an item returned for a request at [position] (with [linePrefix] before the caret) to
+     * a caret that moved forward by typing [typed], or returns null if the item doesn't continue
+     * with the typed text.
+     *
+     * Items are expected to start on the line of the request, either at the caret (the renderer
+     * relies on that) or earlier on the same line.
+     */
+    @VisibleForTesting
+    fun advance(
+        item: AutocompleteItem,
+        position: Position,
+        linePrefix: String,
+        typed: String
+    ): AutocompleteItem? {
+      val start = item.range.start
+      val end = item.range.end
+      if (start.line != position.line || start.character > position.character) {
+        return null
+      }
+      val alreadyTyped = linePrefix.substring(start.character.toInt())
+      if (!item.insertText.startsWith(alreadyTyped + typed)) return null
+      if (typed.isEmpty()) return item
+
+      val shift = typed.length
+      val newEnd = if (end.line == start.line) Position(end.line, end.character + shift) else end
+      return if (start == position) {
+        item.copy(
+            insertText = item.insertText.substring(shift),
+            range = Range(Position(start.line, start.character + shift), newEnd))
+      } else {
+        item.copy(range = Range(start, newEnd))
+      }
+    }
+  }
+}
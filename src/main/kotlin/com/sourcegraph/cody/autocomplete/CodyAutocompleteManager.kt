@@ -1,10 +1,10 @@
 package com.sourcegraph.cody.autocomplete
 
 import com.intellij.codeInsight.hint.HintManager
-import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ModalityState
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.client.ClientSessionsManager
 import com.intellij.openapi.command.CommandProcessor
-import com.intellij.openapi.command.WriteCommandAction
 import com.intellij.openapi.components.Service
 import com.intellij.openapi.components.service
 import com.intellij.openapi.diagnostic.Logger
@@ -12,6 +12,7 @@ import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.Inlay
 import com.intellij.openapi.editor.InlayModel
 import com.intellij.openapi.editor.colors.EditorColorsManager
+import com.intellij.openapi.fileEditor.FileDocumentManager
 import com.intellij.openapi.keymap.KeymapUtil
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.ui.popup.Balloon
@@ -20,10 +21,13 @@ import com.intellij.openapi.util.TextRange
 import com.intellij.openapi.wm.ToolWindowId
 import com.intellij.openapi.wm.ToolWindowManager
 import com.intellij.ui.GotItTooltip
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.util.concurrency.annotations.RequiresEdt
+import com.intellij.util.concurrency.annotations.RequiresReadLock
 import com.sourcegraph.cody.CodyToolWindowContent
 import com.sourcegraph.cody.Icons
 import com.sourcegraph.cody.agent.CodyAgentService
+import com.sourcegraph.cody.agent.intellij_extensions.codyPosition
 import com.sourcegraph.cody.agent.protocol_generated.AutocompleteItem
 import com.sourcegraph.cody.agent.protocol_generated.AutocompleteResult
 import com.sourcegraph.cody.agent.protocol_generated.CompletionItemParams
@@ -49,6 +53,8 @@ import com.sourcegraph.utils.CodyEditorUtil.isCommandExcluded
 import com.sourcegraph.utils.CodyEditorUtil.isEditorValidForAutocomplete
 import com.sourcegraph.utils.CodyEditorUtil.isImplicitAutocompleteEnabledForEditor
 import com.sourcegraph.utils.CodyFormatter
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.atomic.AtomicReference
 import org.jetbrains.annotations.VisibleForTesting
 
@@ -57,6 +63,14 @@ import org.jetbrains.annotations.VisibleForTesting
 class CodyAutocompleteManager {
   private val logger = Logger.getInstance(CodyAutocompleteManager::class.java)
   private val currentJob = AtomicReference(CancellationToken())
+  internal val scheduler =
+      AutocompleteScheduler(
+          execute = ::executeAutocomplete,
+          render = { request, result, cancellationToken ->
+            cacheAutocompleteResult(request, result)
+            processAutocompleteResult(
+                request.editor, request.offset, request.triggerKind, result, cancellationToken)
+          })
 
   /**
    * Clears any already rendered autocomplete suggestions for the given editor and cancels any
@@ -171,20 +185,76 @@ class CodyAutocompleteManager {
       return
     }
 
+    val position = editor.document.codyPosition(offset)
+    val lineSuffix =
+        editor.document.getText(TextRange(offset, editor.document.getLineEndOffset(lineNumber)))
+    val surroundingLines = AutocompleteResultCache.surroundingLines(editor.document, lineNumber)
+
+    if (isTriggeredImplicitly && lookupString.isNullOrEmpty()) {
+      val documentUrl = FileDocumentManager.getInstance().getFile(editor.document)?.url
+      val cachedResult =
+          documentUrl?.let {
+            AutocompleteResultCache.getInstance(project)
+                .get(it, position, originalText, lineSuffix, surroundingLines)
+          }
+      if (cachedResult != null) {
+        processAutocompleteResult(editor, offset, triggerKind, cachedResult, cancellationToken)
+        return
+      }
+    }
+
+    scheduler.schedule(
+        AutocompleteScheduler.AutocompleteRequest(
+            editor = editor,
+            offset = offset,
+            documentVersion = editor.document.modificationStamp,
+            textLength = editor.document.textLength,
+            position = position,
+            linePrefix = originalText,
+            lineSuffix = lineSuffix,
+            surroundingLines = surroundingLines,
+            triggerKind = triggerKind,
+            lookupString = lookupString),
+        cancellationToken)
+  }
+
+  private fun cacheAutocompleteResult(
+      request: AutocompleteScheduler.AutocompleteRequest,
+      result: AutocompleteResult
+  ) {
+    if (!request.lookupString.isNullOrEmpty()) return
+    val project = request.editor.project ?: return
+    val documentUrl =
+        FileDocumentManager.getInstance().getFile(request.editor.document)?.url ?: return
+    AutocompleteResultCache.getInstance(project)
+        .put(
+            documentUrl,
+            request.position,
+            request.linePrefix,
+            request.lineSuffix,
+            request.surroundingLines,
+            result)
+  }
+
+  private fun executeAutocomplete(
+      request: AutocompleteScheduler.AutocompleteRequest,
+      cancellationToken: CancellationToken,
+      onResult: (AutocompleteResult) -> Unit
+  ): CompletableFuture<out AutocompleteResult?> {
+    val editor = request.editor
+    val project = editor.project ?: return CompletableFuture.completedFuture(null)
     val textDocument: TextDocument = IntelliJTextDocument(editor, project)
-    triggerAutocompleteAsync(
+    return triggerAutocompleteAsync(
         project,
         editor,
-        offset,
+        request.offset,
         textDocument,
-        triggerKind,
+        request.triggerKind,
         cancellationToken,
-        lookupString,
-        originalText,
-        logger) { autocompleteResult ->
-          processAutocompleteResult(
-              editor, offset, triggerKind, autocompleteResult, cancellationToken)
-        }
+        request.lookupString,
+        request.linePrefix,
+        logger,
+        onResult)
   }
 
   private fun processAutocompleteResult(
@@ -207,18 +277,40 @@ class CodyAutocompleteManager {
           logger.warn("autocomplete returned empty suggestions")
       return
     }
-    ApplicationManager.getApplication().invokeLater {
-      if (cancellationToken.isCancelled) {
-        return@invokeLater
-      }
-      cancellationToken.dispose()
-      clearAutocompleteSuggestions(editor)
-      // https://github.com/sourcegraph/jetbrains/issues/350
-      // CodyFormatter.formatStringBasedOnDocument needs to be on a write action.
-      WriteCommandAction.runWriteCommandAction(editor.project) {
-        displayAgentAutocomplete(editor, offset, result.items, inlayModel)
-      }
+    // Formatting works on a non-physical copy of the document, so it runs in a background read
+    // action. It is restarted if the document changes while formatting, and dropped once the
+    // suggestion is cancelled or superseded by the next suggestion for this editor.
+    val defaultItem = result.items.first()
+    ReadAction.nonBlocking(Callable { formatCompletion(editor, offset, defaultItem) })
+        .expireWhen { cancellationToken.isCancelled || editor.isDisposed }
+        .coalesceBy(this, editor)
+        .finishOnUiThread(ModalityState.defaultModalityState()) { formattedCompletionText ->
+          if (cancellationToken.isCancelled) {
+            return@finishOnUiThread
+          }
+          cancellationToken.dispose()
+          clearAutocompleteSuggestions(editor)
+          displayAgentAutocomplete(
+              editor, offset, result.items, inlayModel, formattedCompletionText)
+        }
+        .submit(AppExecutorUtil.getAppExecutorService())
+  }
+
+  /**
+   * Formats the completion text of [item] based on the code style of the surrounding document. The
+   * document is copied into a non-physical file for formatting, so a read lock is all it needs.
+   */
+  @RequiresReadLock
+  private fun formatCompletion(editor: Editor, cursorOffset: Int, item: AutocompleteItem): String {
+    val project = editor.project
+    if (project == null ||
+        editor.isDisposed ||
+        System.getProperty("cody.autocomplete.enableFormatting") == "false") {
+      return item.insertText
     }
+    val range = getTextRange(editor.document, item.range)
+    return CodyFormatter.formatStringBasedOnDocument(
+        item.insertText, project, editor.document, range, cursorOffset)
   }
 
   /**
@@ -226,6 +318,9 @@ class CodyAutocompleteManager {
    *
    * The reason we have a custom code path to render hints for agent autocompletions is because we
    * can use `insertText` directly and the `range` encloses the entire line.
+   *
+   * [formattedText] is the completion text of the first item, formatted with [formatCompletion].
+   * It is formatted here if not given.
    */
   @RequiresEdt
   fun displayAgentAutocomplete(
@@ -233,6 +328,7 @@ class CodyAutocompleteManager {
       cursorOffset: Int,
       items: List<AutocompleteItem>,
       inlayModel: InlayModel,
+      formattedText: String? = null,
   ) {
     if (editor.isDisposed) {
       return
@@ -244,13 +340,7 @@ class CodyAutocompleteManager {
     val originalText = editor.document.getText(range)
 
     val formattedCompletionText =
-        if (project == null ||
-            System.getProperty("cody.autocomplete.enableFormatting") == "false") {
-          defaultItem.insertText
-        } else {
-          CodyFormatter.formatStringBasedOnDocument(
-              defaultItem.insertText, project, editor.document, range, cursorOffset)
-        }
+        formattedText ?: formatCompletion(editor, cursorOffset, defaultItem)
 
     if (formattedCompletionText.trim().isBlank()) return
 
@@ -3,6 +3,7 @@ package com.sourcegraph.cody.autocomplete.render
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.Inlay
 import com.intellij.openapi.editor.impl.EditorImpl
+import com.intellij.openapi.editor.impl.FontInfo
 import com.intellij.openapi.editor.markup.TextAttributes
 import com.sourcegraph.cody.agent.protocol_generated.AutocompleteItem
 import java.awt.Font
@@ -15,17 +16,15 @@ class CodyAutocompleteBlockElementRenderer(
     completionItems: List<AutocompleteItem>,
     editor: Editor
 ) : CodyAutocompleteElementRenderer(text, completionItems, editor, AutocompleteRendererType.BLOCK) {
-  override fun calcWidthInPixels(inlay: Inlay<*>): Int {
-    val editor = inlay.editor as EditorImpl
-    val longestLine: String =
-        text.lines().maxWithOrNull(Comparator.comparingInt { it.length }) ?: ""
-    return editor.getFontMetrics(Font.PLAIN).stringWidth(longestLine)
+  private val lines: List<String> = text.lines()
+
+  override fun textWidth(fontInfo: FontInfo): Int {
+    val longestLine: String = lines.maxWithOrNull(Comparator.comparingInt { it.length }) ?: ""
+    return (editor as EditorImpl).getFontMetrics(Font.PLAIN).stringWidth(longestLine)
   }
 
   override fun calcHeightInPixels(inlay: Inlay<*>): Int {
-    val lineHeight = inlay.editor.lineHeight
-    val linesCount = text.lines().count()
-    return lineHeight * linesCount
+    return inlay.editor.lineHeight * lines.size
   }
 
   override fun paint(
@@ -34,14 +33,14 @@ class CodyAutocompleteBlockElementRenderer(
       targetRegion: Rectangle,
       textAttributes: TextAttributes
   ) {
-    val fontInfo = fontInfoForText(text)
-    g.font = fontInfo.font
+    val metrics = metrics()
+    g.font = metrics.fontInfo.font
     g.color = themeAttributes.foregroundColor
     val x = targetRegion.x
-    val baseYOffset = fontYOffset(fontInfo).toInt()
-    for ((i, line) in text.lines().withIndex()) {
-      val y = targetRegion.y + baseYOffset + i * editor.lineHeight
-      g.drawString(line, x, y)
+    val lineHeight = editor.lineHeight
+    for (i in lines.indices) {
+      val y = targetRegion.y + metrics.yOffset + i * lineHeight
+      g.drawString(lines[i], x, y)
     }
   }
 }
@@ -3,6 +3,7 @@ package com.sourcegraph.cody.autocomplete.render
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.EditorCustomElementRenderer
 import com.intellij.openapi.editor.Inlay
+import com.intellij.openapi.editor.colors.EditorColorsScheme
 import com.intellij.openapi.editor.colors.impl.FontPreferencesImpl
 import com.intellij.openapi.editor.impl.ComplementaryFontsRegistry
 import com.intellij.openapi.editor.impl.FontInfo
@@ -22,6 +23,31 @@ abstract class CodyAutocompleteElementRenderer(
 ) : EditorCustomElementRenderer {
   protected val themeAttributes: TextAttributes
 
+  /**
+   * Font, width and baseline of the rendered text. Computing them is comparatively expensive, so
+   * they are kept until the editor scheme, font or line height changes rather than being recomputed
+   * on every repaint.
+   */
+  protected class Metrics(
+      private val scheme: EditorColorsScheme,
+      private val fontName: String,
+      private val fontSize: Int,
+      private val lineHeight: Int,
+      val fontInfo: FontInfo,
+      val yOffset: Int,
+      val width: Int
+  ) {
+    fun isValidFor(editor: Editor): Boolean {
+      val currentScheme = editor.colorsScheme
+      return scheme === currentScheme &&
+          fontName == currentScheme.editorFontName &&
+          fontSize == currentScheme.editorFontSize &&
+          lineHeight == editor.lineHeight
+    }
+  }
+
+  @Volatile private var cachedMetrics: Metrics? = null
+
   init {
     val textAttributesFallback = Supplier {
       AutocompleteRenderUtil.getTextAttributesForEditor(editor)
@@ -34,10 +60,28 @@ abstract class CodyAutocompleteElementRenderer(
         else textAttributesFallback.get()
   }
 
-  override fun calcWidthInPixels(inlay: Inlay<*>): Int =
-      fontInfoForText(text).fontMetrics().stringWidth(text)
+  override fun calcWidthInPixels(inlay: Inlay<*>): Int = metrics().width
+
+  protected fun metrics(): Metrics {
+    val metrics = cachedMetrics
+    if (metrics != null && metrics.isValidFor(editor)) return metrics
+    val scheme = editor.colorsScheme
+    val fontInfo = fontInfoForText(text)
+    return Metrics(
+            scheme,
+            scheme.editorFontName,
+            scheme.editorFontSize,
+            editor.lineHeight,
+            fontInfo,
+            fontYOffset(fontInfo).toInt(),
+            textWidth(fontInfo))
+        .also { cachedMetrics = it }
+  }
+
+  /** Width of the rendered text, computed once per [Metrics]. */
+  protected open fun textWidth(fontInfo: FontInfo): Int = fontInfo.fontMetrics().stringWidth(text)
 
-  protected fun fontInfoForText(text: String): FontInfo {
+  private fun fontInfoForText(text: String): FontInfo {
     val preferences = FontPreferencesImpl()
     editor.colorsScheme.fontPreferences.copyTo(preferences)
     return ComplementaryFontsRegistry.getFontAbleToDisplay(
@@ -49,7 +93,7 @@ abstract class CodyAutocompleteElementRenderer(
         FontInfo.getFontRenderContext(editor.contentComponent))
   }
 
-  fun fontYOffset(fontInfo: FontInfo): Double {
+  private fun fontYOffset(fontInfo: FontInfo): Double {
     val fontBaseline =
         fontInfo.font
             .createGlyphVector(fontInfo.fontRenderContext, "Hello world!")
@@ -19,11 +19,11 @@ class CodyAutocompleteSingleLineRenderer(
       targetRegion: Rectangle,
       textAttributes: TextAttributes
   ) {
-    val fontInfo = fontInfoForText(text)
-    g.font = fontInfo.font
+    val metrics = metrics()
+    g.font = metrics.fontInfo.font
     g.color = themeAttributes.foregroundColor
     val x = targetRegion.x
-    val y = targetRegion.y + fontYOffset(fontInfo).toInt()
+    val y = targetRegion.y + metrics.yOffset
     g.drawString(text, x, y)
   }
 }
@@ -5,6 +5,7 @@ import com.intellij.openapi.fileEditor.FileDocumentManagerListener
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.vfs.LocalFileSystem
 import com.sourcegraph.cody.agent.CodyAgentService
+import com.sourcegraph.cody.autocomplete.AutocompleteResultCache
 import com.sourcegraph.config.ConfigUtil
 import com.sourcegraph.utils.CodyEditorUtil
 
@@ -20,6 +21,7 @@ class CodySettingsFileChangeListener(private val project: Project) : FileDocumen
         LocalFileSystem.getInstance()
             .refreshAndFindFileByNioFile(ConfigUtil.getSettingsFile(project))
     if (currentFile == configFile) {
+      AutocompleteResultCache.getInstance(project).clear()
       // TODO: it seams that some of the settings changes (like enabling/disabling autocomplete)
       // requires agent restart to take effect.
       CodyAgentService.withAgentRestartIfNeeded(project) {
@@ -1,6 +1,10 @@
 package com.sourcegraph.cody.config.migration
 
+import com.intellij.ide.util.PropertiesComponent
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.project.Project
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.sourcegraph.cody.agent.CodyAgent
 import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol_generated.Chat_ImportParams
 import com.sourcegraph.cody.agent.protocol_generated.SerializedChatInteraction
@@ -11,20 +15,123 @@ import com.sourcegraph.cody.auth.deprecated.DeprecatedCodyAccountManager
 import com.sourcegraph.cody.history.HistoryService
 import com.sourcegraph.cody.history.state.ChatState
 import com.sourcegraph.cody.history.state.MessageState
+import org.jetbrains.annotations.VisibleForTesting
 
 // Copies chat history from locally stored jetbrains state to the cody agent
-// so historical chats can be viewed in the cody webview
+// so historical chats can be viewed in the cody webview.
+//
+// Chats are imported newest first, in chunks of at most `cody.chatHistoryImport.chunkSize` chats
+// and `cody.chatHistoryImport.chunkChars` characters, so that recent chats show up in the webview
+// before old ones are converted and no single `chat/import` message gets huge. After each chunk
+// the `updatedAt` of its oldest chat is persisted as a watermark; an import interrupted by an IDE
+// restart or an agent failure continues from there.
 object ChatHistoryMigration {
+  private val logger = Logger.getInstance(ChatHistoryMigration::class.java)
+
+  private const val IN_PROGRESS_KEY = "cody.chatHistoryImport.inProgress"
+  private const val WATERMARK_KEY = "cody.chatHistoryImport.watermark"
+
+  private val chunkSize =
+      System.getProperty("cody.chatHistoryImport.chunkSize", "50").toInt().coerceAtLeast(1)
+  private val chunkChars =
+      System.getProperty("cody.chatHistoryImport.chunkChars", "1000000").toInt()
+
   fun migrate(project: Project) {
-    CodyAgentService.withAgent(project) { agent ->
-      val chats =
-          DeprecatedCodyAccountManager.getInstance().getAccounts().associateWith { account ->
-            (HistoryService.getInstance(project).getChatHistoryFor(account.id) ?: listOf())
-          }
-      val history = toChatInput(chats)
-
-      agent.server.chat_import(Chat_ImportParams(history = history, merge = true)).get()
+    val properties = PropertiesComponent.getInstance(project)
+    properties.setValue(IN_PROGRESS_KEY, true)
+    properties.unsetValue(WATERMARK_KEY)
+    CodyAgentService.withAgent(project) { agent -> startImport(project, agent) }
+  }
+
+  /** Continues an import that didn't finish before the IDE was closed. */
+  fun resumeIfInterrupted(project: Project) {
+    if (!PropertiesComponent.getInstance(project).getBoolean(IN_PROGRESS_KEY)) return
+    CodyAgentService.withAgent(project) { agent -> startImport(project, agent) }
+  }
+
+  private fun startImport(project: Project, agent: CodyAgent) {
+    if (project.isDisposed) return
+    val watermark = PropertiesComponent.getInstance(project).getValue(WATERMARK_KEY)
+    val history = HistoryService.getInstance(project)
+    val chats =
+        DeprecatedCodyAccountManager.getInstance().getAccounts().flatMap { account ->
+          history.getChatHistoryFor(account.id).orEmpty().map { account to it }
+        }
+    importChunk(project, agent, chatsToImport(chats, watermark), from = 0)
+  }
+
+  /**
+   * Imports the chunk of [chats] starting at [from] and, once the agent has accepted it, the next
+   * one. The next chunk is prepared on a pooled thread rather than on the thread delivering the
+   * `chat/import` response, which would otherwise block all other agent messages meanwhile.
+   */
+  private fun importChunk(
+      project: Project,
+      agent: CodyAgent,
+      chats: List<Pair<DeprecatedCodyAccount, ChatState>>,
+      from: Int
+  ) {
+    if (project.isDisposed) return
+    val properties = PropertiesComponent.getInstance(project)
+    if (from >= chats.size) {
+      properties.unsetValue(IN_PROGRESS_KEY)
+      properties.unsetValue(WATERMARK_KEY)
+      return
+    }
+
+    val to = chunkEnd(chats, from, chunkSize, chunkChars)
+    val chunk = chats.subList(from, to).groupBy({ it.first }, { it.second })
+    agent.server
+        .chat_import(Chat_ImportParams(history = toChatInput(chunk), merge = true))
+        .whenCompleteAsync(
+            { _, error ->
+              if (error != null) {
+                // Left in progress; retried from the last watermark on the next start.
+                logger.warn("Failed to import chat history", error)
+              } else {
+                properties.setValue(WATERMARK_KEY, chats[to - 1].second.updatedAt)
+                importChunk(project, agent, chats, to)
+              }
+            },
+            AppExecutorUtil.getAppExecutorService())
+  }
+
+  /** Returns the chats still to be imported, newest first: the ones older than [watermark]. */
+  @VisibleForTesting
+  fun chatsToImport(
+      chats: List<Pair<DeprecatedCodyAccount, ChatState>>,
+      watermark: String?
+  ): List<Pair<DeprecatedCodyAccount, ChatState>> {
+    return chats
+        .filter { (_, chat) ->
+          val updatedAt = chat.updatedAt
+          updatedAt != null && (watermark == null || updatedAt < watermark)
+        }
+        // `updatedAt` is an ISO-8601 local date-time, so it sorts chronologically as text.
+        .sortedByDescending { it.second.updatedAt }
+  }
+
+  /**
+   * Returns the end (exclusive) of the chunk of [chats] starting at [from]. Chats with the same
+   * timestamp always end up in the same chunk, so the watermark can't split them.
+   */
+  @VisibleForTesting
+  fun chunkEnd(
+      chats: List<Pair<DeprecatedCodyAccount, ChatState>>,
+      from: Int,
+      maxChats: Int,
+      maxChars: Int
+  ): Int {
+    var end = from
+    var chars = 0
+    while (end < chats.size) {
+      val chat = chats[end].second
+      val isFull = end - from >= maxChats || (end > from && chars >= maxChars)
+      if (isFull && chat.updatedAt != chats[end - 1].second.updatedAt) break
+      chars += chat.messages.sumOf { it.text?.length ?: 0 }
+      end++
     }
+    return end
   }
 
   fun toChatInput(
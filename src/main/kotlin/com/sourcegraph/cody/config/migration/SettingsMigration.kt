@@ -66,6 +66,7 @@ class SettingsMigration : Activity {
     RunOnceUtil.runOnceForProject(project, "ChatTagsLlmMigration") {
       ChatTagsLlmMigration.migrate(project)
     }
+    ChatHistoryMigration.resumeIfInterrupted(project)
     RunOnceUtil.runOnceForProject(project, "CodyMigrateChatHistory-v2") {
       ChatHistoryMigration.migrate(project)
     }
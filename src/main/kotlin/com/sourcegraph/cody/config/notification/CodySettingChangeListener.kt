@@ -5,6 +5,7 @@ import com.intellij.openapi.project.Project
 import com.intellij.openapi.wm.ToolWindowManager
 import com.sourcegraph.cody.CodyToolWindowFactory
 import com.sourcegraph.cody.agent.CodyAgentService
+import com.sourcegraph.cody.autocomplete.AutocompleteResultCache
 import com.sourcegraph.cody.autocomplete.CodyAutocompleteManager
 import com.sourcegraph.cody.autocomplete.render.AutocompleteRenderUtil
 import com.sourcegraph.cody.statusbar.CodyStatusService
@@ -30,6 +31,9 @@ class CodySettingChangeListener(project: Project) : ChangeListener(project) {
               }
             }
 
+            // Completions cached under the old configuration may use another model or settings.
+            AutocompleteResultCache.getInstance(project).clear()
+
             // Notify Cody Agent about config changes.
             CodyAgentService.withAgentRestartIfNeeded(project) { agent ->
               if (ConfigUtil.isCodyEnabled()) {
@@ -1,11 +1,15 @@
 package com.sourcegraph.cody.edit
 
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.command.WriteCommandAction
 import com.intellij.openapi.components.Service
 import com.intellij.openapi.components.service
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.Document
 import com.intellij.openapi.fileEditor.FileDocumentManager
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Key
+import com.intellij.util.concurrency.annotations.RequiresEdt
 import com.sourcegraph.cody.agent.protocol_extensions.toOffsetOrZero
 import com.sourcegraph.cody.agent.protocol_extensions.toOffsetRange
 import com.sourcegraph.cody.agent.protocol_generated.CreateFileOperation
@@ -17,52 +21,130 @@ import com.sourcegraph.cody.agent.protocol_generated.RenameFileOperation
 import com.sourcegraph.cody.agent.protocol_generated.ReplaceTextEdit
 import com.sourcegraph.cody.agent.protocol_generated.TextEdit
 import com.sourcegraph.cody.agent.protocol_generated.WorkspaceEditParams
+import com.sourcegraph.cody.listeners.DocumentSyncQueue
 import com.sourcegraph.utils.CodyEditorUtil
+import java.util.concurrent.CompletableFuture
 
 @Service(Service.Level.PROJECT)
 class EditService(val project: Project) {
   val logger = Logger.getInstance(TextEdit::class.java)
 
+  private class PendingTextEdits(val edits: List<TextEdit>, val result: CompletableFuture<Boolean>)
+
+  // Guarded by `pendingTextEdits`.
+  private val pendingTextEdits = LinkedHashMap<String, MutableList<PendingTextEdits>>()
+  private var isFlushScheduled = false
+
   /**
-   * Applies a list of text edits to the specified file.
+   * Queues a `textDocument/edit` request from the agent.
+   *
+   * Requests for the same file that arrive before the EDT gets to them are applied together in a
+   * single write command, so a streamed edit becomes one undo step. The incremental changes of the
+   * batch reach the agent merged into a single `textDocument/didChange` by [DocumentSyncQueue].
+   *
+   * @return a future completed on the EDT with `true` if all edits of this request were applied.
+   */
+  fun queueTextEdits(uri: String, edits: List<TextEdit>): CompletableFuture<Boolean> {
+    val result = CompletableFuture<Boolean>()
+    val scheduleFlush =
+        synchronized(pendingTextEdits) {
+          pendingTextEdits.getOrPut(uri) { mutableListOf() }.add(PendingTextEdits(edits, result))
+          !isFlushScheduled.also { isFlushScheduled = true }
+        }
+    if (scheduleFlush) {
+      ApplicationManager.getApplication().invokeLater { flushTextEdits() }
+    }
+    return result
+  }
+
+  /**
+   * Applies a list of text edits to the specified file right away, after any queued edits.
    *
    * @param uri The URI of the file to apply the edits to.
    * @param edits The list of text edits to apply.
    * @return `true` if all edits were successfully applied, `false` otherwise.
    */
+  @RequiresEdt
   fun performTextEdits(uri: String, edits: List<TextEdit>): Boolean {
+    flushTextEdits()
+    return applyTextEdits(uri, listOf(edits)).single()
+  }
+
+  @RequiresEdt
+  private fun flushTextEdits() {
+    val batch =
+        synchronized(pendingTextEdits) {
+          isFlushScheduled = false
+          pendingTextEdits.toList().also { pendingTextEdits.clear() }
+        }
+    for ((uri, requests) in batch) {
+      val results =
+          try {
+            applyTextEdits(uri, requests.map { it.edits })
+          } catch (e: RuntimeException) {
+            logger.error(e)
+            requests.map { false }
+          }
+      requests.zip(results).forEach { (request, applied) -> request.result.complete(applied) }
+    }
+  }
+
+  /**
+   * Applies the edits of several requests for one file in a single write command, in order. Each
+   * request's edits are relative to the document as left by the previous request.
+   */
+  private fun applyTextEdits(uri: String, requests: List<List<TextEdit>>): List<Boolean> {
+    if (project.isDisposed) return requests.map { false }
     val file =
         CodyEditorUtil.findFileOrScratch(project, uri)
             ?: run {
               logger.warn("Failed to find file for URI: $uri")
-              return false
+              return requests.map { false }
             }
     val document =
         FileDocumentManager.getInstance().getDocument(file)
             ?: run {
               logger.warn("Failed to get document for file: ${file.name}")
-              return false
+              return requests.map { false }
             }
 
-    return WriteCommandAction.runWriteCommandAction<Boolean>(project) {
-      edits.reversed().all { edit ->
-        when (edit) {
-          is ReplaceTextEdit -> {
-            val (startOffset, endOffset) = edit.range.toOffsetRange(document)
-            document.replaceString(startOffset, endOffset, edit.value)
-            true
-          }
-          is DeleteTextEdit -> {
-            val (startOffset, endOffset) = edit.range.toOffsetRange(document)
-            document.deleteString(startOffset, endOffset)
-            true
-          }
-          is InsertTextEdit -> {
-            document.insertString(edit.position.toOffsetOrZero(document), edit.value)
-            true
+    val results = mutableListOf<Boolean>()
+    document.putUserData(AGENT_EDIT_IN_PROGRESS, true)
+    try {
+      WriteCommandAction.runWriteCommandAction(project) {
+        requests.mapTo(results) { edits ->
+          try {
+            applyEdits(document, edits)
+          } catch (e: RuntimeException) {
+            logger.error("Failed to apply edits to ${file.name}", e)
+            false
           }
         }
       }
+    } finally {
+      document.putUserData(AGENT_EDIT_IN_PROGRESS, null)
+    }
+    return results
+  }
+
+  private fun applyEdits(document: Document, edits: List<TextEdit>): Boolean {
+    return edits.reversed().all { edit ->
+      when (edit) {
+        is ReplaceTextEdit -> {
+          val (startOffset, endOffset) = edit.range.toOffsetRange(document)
+          document.replaceString(startOffset, endOffset, edit.value)
+          true
+        }
+        is DeleteTextEdit -> {
+          val (startOffset, endOffset) = edit.range.toOffsetRange(document)
+          document.deleteString(startOffset, endOffset)
+          true
+        }
+        is InsertTextEdit -> {
+          document.insertString(edit.position.toOffsetOrZero(document), edit.value)
+          true
+        }
+      }
     }
   }
 
@@ -94,6 +176,12 @@ class EditService(val project: Project) {
   }
 
   companion object {
+    private val AGENT_EDIT_IN_PROGRESS = Key.create<Boolean>("cody.agentEditInProgress")
+
+    /** Whether [document] is currently being changed by edits requested by the agent. */
+    fun isApplyingAgentEdit(document: Document): Boolean =
+        document.getUserData(AGENT_EDIT_IN_PROGRESS) == true
+
     fun getInstance(project: Project): EditService {
       return project.service<EditService>()
     }
@@ -10,6 +10,14 @@ import com.sourcegraph.cody.history.state.AccountData
 import com.sourcegraph.cody.history.state.ChatState
 import com.sourcegraph.cody.history.state.HistoryState
 
+/**
+ * Chat history as stored by plugin versions before chats moved to the agent.
+ *
+ * Nothing writes new chats here anymore: the state is only read and adjusted by the run-once
+ * migrations in [com.sourcegraph.cody.config.migration], the last of which imports it into the
+ * agent. Once they have run the service is no longer instantiated, so `cody_history.xml` is neither
+ * parsed on project open nor serialized on save.
+ */
 @State(name = "ChatHistory", storages = [Storage("cody_history.xml")])
 @Service(Service.Level.PROJECT)
 class HistoryService : SimplePersistentStateComponent<HistoryState>(HistoryState()) {
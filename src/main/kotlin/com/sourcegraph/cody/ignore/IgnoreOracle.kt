@@ -8,7 +8,6 @@ import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.fileEditor.FileDocumentManager
 import com.intellij.openapi.project.Project
-import com.intellij.util.containers.SLRUMap
 import com.sourcegraph.cody.agent.CodyAgent
 import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
@@ -28,9 +27,18 @@ import java.util.concurrent.TimeoutException
 class IgnoreOracle(private val project: Project) {
   private val logger = Logger.getInstance(IgnoreOracle::class.java)
 
-  data class CacheEntry(val policy: Ignore_TestResult.PolicyEnum, val timestampMsec: Long)
+  private val cache =
+      IgnorePolicyCache(
+          size = System.getProperty("cody.ignore.cache.size", "1000").toInt(),
+          maxAgeMsec = System.getProperty("cody.ignore.cache.ttl", "60000").toLong(),
+          inferIgnoredSiblings =
+              System.getProperty("cody.ignore.cache.inferSiblings", "false").toBoolean())
+
+  // Requests which were queued or sent but haven't been answered yet, guarded by `pendingUris`.
+  private val inFlight = mutableMapOf<String, CompletableFuture<Ignore_TestResult.PolicyEnum>>()
+  private val pendingUris = LinkedHashSet<String>()
+  private var flushScheduledAtMsec: Long? = null
 
-  private val cache = SLRUMap<String, CacheEntry>(100, 100)
   @Volatile private var focusedPolicy: Ignore_TestResult.PolicyEnum? = null
   @Volatile private var willFocusUri: String? = null
   private val fileListeners: MutableList<FocusedFileIgnorePolicyListener> = mutableListOf()
@@ -89,7 +97,9 @@ class IgnoreOracle(private val project: Project) {
    * client callbacks.
    */
   fun onIgnoreDidChange() {
-    synchronized(cache) { cache.clear() }
+    cache.clear()
+    // Requests already sent may be answered with the old policy; don't hand them out anymore.
+    synchronized(pendingUris) { inFlight.keys.retainAll(pendingUris) }
 
     // Re-set the focused file URI to update the status bar.
     val uri = willFocusUri
@@ -100,26 +110,75 @@ class IgnoreOracle(private val project: Project) {
 
   /** Gets whether `uri` should be ignored for autocomplete, context, etc. */
   fun policyForUri(uri: String): CompletableFuture<Ignore_TestResult.PolicyEnum> {
-    val completable = CompletableFuture<Ignore_TestResult.PolicyEnum>()
-    val result = synchronized(cache) { cache[uri] }
-    val cacheMaxAgeMsec = 60 * 1000
-    if (result != null && result.timestampMsec > System.currentTimeMillis() - cacheMaxAgeMsec) {
-      completable.complete(result.policy)
-      return completable
+    cache.get(uri)?.let {
+      return CompletableFuture.completedFuture(it)
     }
-    CodyAgentService.withAgent(project) { agent ->
-      policyForUri(uri, agent).thenAccept(completable::complete)
+    val (future, shouldFlush) =
+        synchronized(pendingUris) {
+          val existing = inFlight[uri]
+          if (existing != null) return existing
+          val future = CompletableFuture<Ignore_TestResult.PolicyEnum>()
+          inFlight[uri] = future
+          pendingUris.add(uri)
+
+          // If the agent never picks up a scheduled flush (e.g. it failed to start), schedule a new
+          // one rather than queueing requests forever.
+          val now = System.currentTimeMillis()
+          val scheduledAt = flushScheduledAtMsec
+          val shouldFlush = scheduledAt == null || now - scheduledAt > STALE_FLUSH_MSEC
+          if (shouldFlush) flushScheduledAtMsec = now
+          Pair(future, shouldFlush)
+        }
+    if (shouldFlush) {
+      CodyAgentService.withAgent(project) { agent -> flushPendingUris(agent) }
     }
-    return completable
+    return future
   }
 
   /** Like `policyForUri(String)` but reuses the current thread and supplied Agent handle. */
   fun policyForUri(uri: String, agent: CodyAgent): CompletableFuture<Ignore_TestResult.PolicyEnum> {
-    return agent.server.ignore_test(Ignore_TestParams(uri)).thenApply {
-      synchronized(cache) {
-        cache.put(uri, CacheEntry(policy = it.policy, timestampMsec = System.currentTimeMillis()))
+    cache.get(uri)?.let {
+      return CompletableFuture.completedFuture(it)
+    }
+    val future =
+        synchronized(pendingUris) {
+          val existing = inFlight[uri]
+          if (existing != null && !pendingUris.contains(uri)) return existing
+          pendingUris.remove(uri)
+          existing ?: CompletableFuture<Ignore_TestResult.PolicyEnum>().also { inFlight[uri] = it }
+        }
+    sendIgnoreTest(uri, future, agent)
+    return future
+  }
+
+  private fun flushPendingUris(agent: CodyAgent) {
+    val batch =
+        synchronized(pendingUris) {
+          flushScheduledAtMsec = null
+          val batch = pendingUris.map { it to inFlight.getValue(it) }
+          pendingUris.clear()
+          batch
+        }
+    // Pipelined: all requests are written before any of the responses is awaited.
+    for ((uri, future) in batch) {
+      sendIgnoreTest(uri, future, agent)
+    }
+  }
+
+  private fun sendIgnoreTest(
+      uri: String,
+      future: CompletableFuture<Ignore_TestResult.PolicyEnum>,
+      agent: CodyAgent
+  ) {
+    val generation = cache.generation()
+    agent.server.ignore_test(Ignore_TestParams(uri)).whenComplete { result, error ->
+      synchronized(pendingUris) { inFlight.remove(uri, future) }
+      if (error != null) {
+        future.completeExceptionally(error)
+      } else {
+        cache.put(uri, result.policy, generation)
+        future.complete(result.policy)
       }
-      it.policy
     }
   }
 
@@ -140,6 +199,8 @@ class IgnoreOracle(private val project: Project) {
   }
 
   companion object {
+    private const val STALE_FLUSH_MSEC = 5_000L
+
     fun getInstance(project: Project): IgnoreOracle {
       return project.service<IgnoreOracle>()
     }
@@ -0,0 +1,84 @@
+package com.sourcegraph.cody.ignore
+
+import com.intellij.util.containers.SLRUMap
+import com.sourcegraph.cody.agent.protocol_generated.Ignore_TestResult
+
+/**
+ * Time-limited cache of `ignore/test` results, used by [IgnoreOracle].
+ *
+ * Optionally, the policy of a file can be inferred from its siblings. Only `Ignore` is ever
+ * inferred, and only from a directory in which every file looked up so far is ignored: a path
+ * specific rule may exclude a single file from an otherwise used directory, so a `Use` answer is
+ * never extended to files the agent hasn't seen.
+ */
+internal class IgnorePolicyCache(
+    size: Int,
+    private val maxAgeMsec: Long,
+    private val inferIgnoredSiblings: Boolean,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+  private data class CacheEntry(val policy: Ignore_TestResult.PolicyEnum, val timestampMsec: Long)
+
+  /**
+   * Policy shared by all files looked up so far in a directory. Once two files in the same
+   * directory disagree, the directory is marked as mixed and never used for inference.
+   */
+  private data class DirectoryEntry(
+      val policy: Ignore_TestResult.PolicyEnum,
+      val isMixed: Boolean,
+      val timestampMsec: Long
+  )
+
+  // All fields are guarded by `this`. The generation is bumped by `clear` so that responses to
+  // requests sent before the change aren't cached.
+  private val cache = SLRUMap<String, CacheEntry>(size, size)
+  private val directoryCache = SLRUMap<String, DirectoryEntry>(size / 4, size / 4)
+  private var generation = 0L
+
+  @Synchronized fun generation(): Long = generation
+
+  @Synchronized
+  fun get(uri: String): Ignore_TestResult.PolicyEnum? {
+    val minTimestampMsec = clock() - maxAgeMsec
+    val entry = cache[uri]
+    if (entry != null && entry.timestampMsec > minTimestampMsec) {
+      return entry.policy
+    }
+    if (!inferIgnoredSiblings) return null
+    val directory = directoryCache[parentOf(uri)]
+    if (directory != null &&
+        !directory.isMixed &&
+        directory.policy == Ignore_TestResult.PolicyEnum.Ignore &&
+        directory.timestampMsec > minTimestampMsec) {
+      return directory.policy
+    }
+    return null
+  }
+
+  /** Caches `policy` unless the cache was cleared since `generation` was read. */
+  @Synchronized
+  fun put(uri: String, policy: Ignore_TestResult.PolicyEnum, generation: Long) {
+    if (generation != this.generation) return
+    val now = clock()
+    cache.put(uri, CacheEntry(policy = policy, timestampMsec = now))
+    val parent = parentOf(uri)
+    val directory = directoryCache[parent]
+    val updated =
+        when {
+          directory == null || directory.timestampMsec <= now - maxAgeMsec ->
+              DirectoryEntry(policy, isMixed = false, timestampMsec = now)
+          directory.policy != policy -> directory.copy(isMixed = true)
+          else -> directory
+        }
+    directoryCache.put(parent, updated)
+  }
+
+  @Synchronized
+  fun clear() {
+    cache.clear()
+    directoryCache.clear()
+    generation++
+  }
+
+  private fun parentOf(uri: String): String = uri.substringBeforeLast('/')
+}
@@ -14,26 +14,40 @@ import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.util.ProgressIndicatorUtils
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Key
 import com.intellij.psi.PsiFile
 import com.intellij.util.concurrency.annotations.RequiresEdt
+import com.sourcegraph.cody.agent.CodyAgent
 import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.intellij_extensions.codyRange
 import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
 import com.sourcegraph.cody.agent.protocol_generated.CodeActions_ProvideParams
-import com.sourcegraph.cody.agent.protocol_generated.Diagnostics_PublishParams
 import com.sourcegraph.cody.agent.protocol_generated.ProtocolDiagnostic
 import com.sourcegraph.cody.agent.protocol_generated.ProtocolLocation
 import com.sourcegraph.cody.agent.protocol_generated.Range
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.ExecutionException
-import org.eclipse.lsp4j.jsonrpc.ResponseErrorException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
 
 class CodyFixHighlightPass(val file: PsiFile, val editor: Editor) :
     TextEditorHighlightingPass(file.project, editor.document, false) {
 
   private val logger = Logger.getInstance(CodyFixHighlightPass::class.java)
   private var myHighlights = emptyList<HighlightInfo>()
-  private val myRangeActions = mutableMapOf<Range, List<CodeActionQuickFixParams>>()
+  private var myCodeActions = CodeActionCache(modificationStamp = -1)
+
+  /** Code actions are fetched per diagnostic, so we key them by range and message. */
+  private data class CodeActionKey(val range: Range, val message: String?)
+
+  /**
+   * Code actions fetched for a given version of the document. Kept in the document user data so
+   * that subsequent passes only ask the agent about new diagnostics.
+   */
+  private class CodeActionCache(val modificationStamp: Long) {
+    val actions = ConcurrentHashMap<CodeActionKey, List<CodeActionQuickFixParams>>()
+  }
 
   override fun doCollectInformation(progress: ProgressIndicator) {
     if (!DaemonCodeAnalyzer.getInstance(file.project).isHighlightingAvailable(file) ||
@@ -43,7 +57,7 @@ class CodyFixHighlightPass(val file: PsiFile, val editor: Editor) :
     }
     val uri = ProtocolTextDocumentExt.uriFor(file.virtualFile)
 
-    myRangeActions.clear()
+    myCodeActions = codeActionCacheForDocument()
 
     myHighlights =
         DaemonCodeAnalyzerImpl.getHighlights(editor.document, HighlightSeverity.ERROR, file.project)
@@ -75,41 +89,94 @@ class CodyFixHighlightPass(val file: PsiFile, val editor: Editor) :
       return
     }
 
-    val done = CompletableFuture<Unit>()
-    CodyAgentService.withAgentRestartIfNeeded(file.project) { agent ->
-      try {
-        agent.server.diagnostics_publish(
-            Diagnostics_PublishParams(diagnostics = protocolDiagnostics))
-
-        for (diagnostic in protocolDiagnostics) {
-          if (progress.isCanceled) {
-            break
-          }
-
-          val location = diagnostic.location
-          if (myRangeActions.containsKey(location.range)) {
-            continue
-          }
-
-          val provideParam = CodeActions_ProvideParams(triggerKind = "Invoke", location = location)
-          val provideResponse = agent.server.codeActions_provide(provideParam).get()
-          myRangeActions[location.range] =
-              provideResponse.codeActions.map {
+    val missingDiagnostics =
+        protocolDiagnostics
+            .distinctBy { CodeActionKey(it.location.range, it.message) }
+            .filterNot {
+              myCodeActions.actions.containsKey(CodeActionKey(it.location.range, it.message))
+            }
+
+    // Code actions are computed from the diagnostics the agent knows, so fetch them only once the
+    // diagnostics are published.
+    val done =
+        DiagnosticsPublisher.getInstance(file.project)
+            .publish(uri, protocolDiagnostics)
+            .thenCompose { isPublished ->
+              val fetched = CompletableFuture<Unit>()
+              if (!isPublished || missingDiagnostics.isEmpty()) {
+                fetched.complete(Unit)
+                return@thenCompose fetched
+              }
+              CodyAgentService.withAgent(file.project) { agent ->
+                try {
+                  fetchCodeActions(agent, missingDiagnostics, myCodeActions, progress).thenRun {
+                    fetched.complete(Unit)
+                  }
+                } catch (e: Exception) {
+                  fetched.completeExceptionally(e)
+                }
+              }
+              fetched
+            }
+    ProgressIndicatorUtils.awaitWithCheckCanceled(done, progress)
+  }
+
+  private fun codeActionCacheForDocument(): CodeActionCache {
+    val cached = document.getUserData(CODE_ACTIONS_KEY)
+    if (cached != null && cached.modificationStamp == document.modificationStamp) {
+      return cached
+    }
+    val fresh = CodeActionCache(document.modificationStamp)
+    document.putUserData(CODE_ACTIONS_KEY, fresh)
+    return fresh
+  }
+
+  /**
+   * Requests code actions for [diagnostics] with at most [MAX_PARALLEL_REQUESTS] requests in
+   * flight. Results are stored in [cache] as they arrive, so that a pass cancelled half-way doesn't
+   * lose the code actions that were already fetched.
+   */
+  private fun fetchCodeActions(
+      agent: CodyAgent,
+      diagnostics: List<ProtocolDiagnostic>,
+      cache: CodeActionCache,
+      progress: ProgressIndicator
+  ): CompletableFuture<Unit> {
+    val all = CompletableFuture<Unit>()
+    if (diagnostics.isEmpty()) {
+      all.complete(Unit)
+      return all
+    }
+    val queue = ConcurrentLinkedQueue(diagnostics)
+    val remaining = AtomicInteger(diagnostics.size)
+
+    fun fetchNext() {
+      val diagnostic = queue.poll() ?: return
+      if (progress.isCanceled) {
+        all.complete(Unit)
+        return
+      }
+      val location = diagnostic.location
+      val provideParams = CodeActions_ProvideParams(triggerKind = "Invoke", location = location)
+      agent.server.codeActions_provide(provideParams).handle { response, error ->
+        if (error != null) {
+          logger.warn("Failed to get code actions for diagnostic", error)
+        } else {
+          cache.actions[CodeActionKey(location.range, diagnostic.message)] =
+              response.codeActions.map {
                 CodeActionQuickFixParams(action = it, location = location)
               }
         }
-        done.complete(Unit)
-      } catch (e: Exception) {
-        val responseErrorException = (e as? ExecutionException)?.cause as? ResponseErrorException
-        if (responseErrorException != null) {
-          logger.warn("Failed to get code actions for diagnostic", e)
-          done.complete(Unit)
+        if (remaining.decrementAndGet() == 0) {
+          all.complete(Unit)
         } else {
-          done.completeExceptionally(e)
+          fetchNext()
         }
       }
     }
-    ProgressIndicatorUtils.awaitWithCheckCanceled(done, progress)
+
+    repeat(min(MAX_PARALLEL_REQUESTS, diagnostics.size)) { fetchNext() }
+    return all
   }
 
   @RequiresEdt
@@ -124,7 +191,8 @@ class CodyFixHighlightPass(val file: PsiFile, val editor: Editor) :
       }
 
       val range = document.codyRange(highlight.startOffset, highlight.endOffset)
-      for (action in myRangeActions[range].orEmpty()) {
+      val actions = myCodeActions.actions[CodeActionKey(range, highlight.description)]
+      for (action in actions.orEmpty()) {
         highlight.registerFix(
             CodeActionQuickFix(action),
             /* options = */ null,
@@ -134,6 +202,12 @@ class CodyFixHighlightPass(val file: PsiFile, val editor: Editor) :
       }
     }
   }
+
+  companion object {
+    private const val MAX_PARALLEL_REQUESTS = 4
+
+    private val CODE_ACTIONS_KEY = Key.create<CodeActionCache>("cody.codeActions")
+  }
 }
 
 class CodyFixHighlightPassFactory : TextEditorHighlightingPassFactoryRegistrar {
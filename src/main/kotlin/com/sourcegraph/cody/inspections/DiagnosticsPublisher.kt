@@ -0,0 +1,135 @@
+package com.sourcegraph.cody.inspections
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.project.Project
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.sourcegraph.cody.agent.CodyAgentService
+import com.sourcegraph.cody.agent.protocol_generated.Diagnostics_PublishParams
+import com.sourcegraph.cody.agent.protocol_generated.Ignore_TestResult
+import com.sourcegraph.cody.agent.protocol_generated.ProtocolDiagnostic
+import com.sourcegraph.cody.ignore.IgnoreOracle
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Publishes the error diagnostics of files to the agent when they change.
+ *
+ * `diagnostics/publish` replaces everything the agent knows about the files it mentions, so the
+ * smallest possible update is the complete set of one file. Highlighting passes run much more often
+ * than the errors of a file change, so a fingerprint of the last published set is kept per file and
+ * passes producing the same set are not sent again. Changes are debounced per file by
+ * `cody.diagnostics.publishDelay` ms. Files excluded by the ignore policy are never published.
+ */
+@Service(Service.Level.PROJECT)
+class DiagnosticsPublisher(private val project: Project) {
+
+  private class PendingPublish(var diagnostics: List<ProtocolDiagnostic>, var fingerprint: Int) {
+    val published = CompletableFuture<Boolean>()
+  }
+
+  // All fields below are guarded by `pending`.
+  private val pending = HashMap<String, PendingPublish>()
+  private val publishedFingerprints = HashMap<String, Int>()
+  private var generation = 0L
+
+  /**
+   * Publishes [diagnostics] as the complete set of errors in [uri].
+   *
+   * @return a future completed with `true` once the agent knows these diagnostics, or with `false`
+   *   if they were not published because the file is ignored or the request failed.
+   */
+  fun publish(uri: String, diagnostics: List<ProtocolDiagnostic>): CompletableFuture<Boolean> {
+    val fingerprint = diagnostics.toSet().hashCode()
+    synchronized(pending) {
+      val existing = pending[uri]
+      if (existing != null) {
+        existing.diagnostics = diagnostics
+        existing.fingerprint = fingerprint
+        return existing.published
+      }
+      if (publishedFingerprints[uri] == fingerprint) {
+        return CompletableFuture.completedFuture(true)
+      }
+      val publish = PendingPublish(diagnostics, fingerprint)
+      pending[uri] = publish
+      val flushGeneration = generation
+      AppExecutorUtil.getAppScheduledExecutorService()
+          .schedule({ flush(uri, flushGeneration) }, publishDelayMs, TimeUnit.MILLISECONDS)
+      return publish.published
+    }
+  }
+
+  private fun flush(uri: String, flushGeneration: Long) {
+    val publish =
+        synchronized(pending) {
+          if (flushGeneration != generation) return
+          val publish = pending.remove(uri) ?: return
+          if (publishedFingerprints[uri] == publish.fingerprint) {
+            publish.published.complete(true)
+            return
+          }
+          publish
+        }
+
+    CodyAgentService.withAgentRestartIfNeeded(project) { agent ->
+      IgnoreOracle.getInstance(project)
+          .policyForUri(uri, agent)
+          .thenCompose { policy ->
+            if (policy != Ignore_TestResult.PolicyEnum.Use) {
+              CompletableFuture.completedFuture(false)
+            } else {
+              agent.server
+                  .diagnostics_publish(Diagnostics_PublishParams(diagnostics = publish.diagnostics))
+                  .thenApply {
+                    synchronized(pending) {
+                      if (flushGeneration == generation) {
+                        publishedFingerprints[uri] = publish.fingerprint
+                      }
+                    }
+                    true
+                  }
+            }
+          }
+          .whenComplete { isPublished, error ->
+            if (error != null) logger.warn("Failed to publish diagnostics for $uri", error)
+            publish.published.complete(isPublished == true)
+          }
+    }
+  }
+
+  /**
+   * Forgets what has been published for [uri], so that closed files don't accumulate over a long
+   * session. Called together with `textDocument/didClose`.
+   */
+  fun fileClosed(uri: String) {
+    synchronized(pending) { publishedFingerprints.remove(uri) }
+  }
+
+  /**
+   * Forgets what has been published. Called when the agent is stopped, as a restarted agent doesn't
+   * know any diagnostics.
+   */
+  fun reset() {
+    val dropped =
+        synchronized(pending) {
+          generation++
+          publishedFingerprints.clear()
+          pending.values.toList().also { pending.clear() }
+        }
+    dropped.forEach { it.published.complete(false) }
+  }
+
+  companion object {
+    private val logger = Logger.getInstance(DiagnosticsPublisher::class.java)
+
+    private val publishDelayMs =
+        System.getProperty("cody.diagnostics.publishDelay", "300").toLong()
+
+    @JvmStatic
+    fun getInstance(project: Project): DiagnosticsPublisher {
+      return project.service<DiagnosticsPublisher>()
+    }
+  }
+}
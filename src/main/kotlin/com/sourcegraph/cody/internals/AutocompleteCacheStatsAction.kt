@@ -0,0 +1,22 @@
+package com.sourcegraph.cody.internals
+
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.project.Project
+import com.sourcegraph.cody.autocomplete.AutocompleteResultCache
+import com.sourcegraph.common.ui.DumbAwareEDTAction
+
+class AutocompleteCacheStatsAction(val project: Project) : DumbAwareEDTAction() {
+  override fun update(e: AnActionEvent) {
+    super.update(e)
+    val cache = AutocompleteResultCache.getInstance(project)
+    e.presentation.text =
+        "Autocomplete cache: ${cache.hits.get()} hits, ${cache.misses.get()} misses (clear)"
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    val cache = AutocompleteResultCache.getInstance(project)
+    cache.clear()
+    cache.hits.set(0)
+    cache.misses.set(0)
+  }
+}
@@ -0,0 +1,23 @@
+package com.sourcegraph.cody.internals
+
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.sourcegraph.common.ui.DumbAwareEDTAction
+import com.sourcegraph.utils.CodyFormatter
+
+class AutocompleteFormattingStatsAction : DumbAwareEDTAction() {
+  override fun update(e: AnActionEvent) {
+    super.update(e)
+    val summary =
+        CodyFormatter.stats.entries.joinToString(", ") { (mode, stats) ->
+          val calls = stats.calls.get()
+          val averageMs = if (calls == 0L) 0 else stats.totalNanos.get() / calls / 1_000_000
+          val maxMs = stats.maxNanos.get() / 1_000_000
+          "${mode.name.lowercase()} $calls × ${averageMs}ms (max ${maxMs}ms)"
+        }
+    e.presentation.text = "Autocomplete formatting: $summary (reset)"
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    CodyFormatter.stats.values.forEach { it.reset() }
+  }
+}
@@ -0,0 +1,20 @@
+package com.sourcegraph.cody.internals
+
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.sourcegraph.cody.autocomplete.CodyAutocompleteManager
+import com.sourcegraph.common.ui.DumbAwareEDTAction
+
+class AutocompleteSchedulerStatsAction : DumbAwareEDTAction() {
+  override fun update(e: AnActionEvent) {
+    super.update(e)
+    val scheduler = CodyAutocompleteManager.instance.scheduler
+    e.presentation.text =
+        "Autocomplete requests: ${scheduler.requestsSent.get()} sent, " +
+            "${scheduler.duplicatesDropped.get()} duplicates dropped, " +
+            "${scheduler.inFlightReused.get()} reused while typing (reset)"
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    CodyAutocompleteManager.instance.scheduler.resetStats()
+  }
+}
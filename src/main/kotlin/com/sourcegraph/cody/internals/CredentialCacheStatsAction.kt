@@ -0,0 +1,18 @@
+package com.sourcegraph.cody.internals
+
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.sourcegraph.cody.auth.CodyCredentialCache
+import com.sourcegraph.common.ui.DumbAwareEDTAction
+
+class CredentialCacheStatsAction : DumbAwareEDTAction() {
+  override fun update(e: AnActionEvent) {
+    super.update(e)
+    val reads = CodyCredentialCache.keyringReads.get()
+    val hits = CodyCredentialCache.cacheHits.get()
+    e.presentation.text = "Credentials: $reads keyring reads, $hits cache hits (reset)"
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    CodyCredentialCache.resetStats()
+  }
+}
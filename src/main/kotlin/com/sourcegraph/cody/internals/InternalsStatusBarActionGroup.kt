@@ -17,6 +17,11 @@ class InternalsStatusBarActionGroup : DefaultActionGroup() {
     if (e.project != null) {
       addAll(
           IgnoreOverrideAction(e.project!!),
+          AutocompleteCacheStatsAction(e.project!!),
+          AutocompleteSchedulerStatsAction(),
+          AutocompleteFormattingStatsAction(),
+          JsonRpcStatsAction(),
+          CredentialCacheStatsAction(),
       )
     }
   }
@@ -0,0 +1,28 @@
+package com.sourcegraph.cody.internals
+
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.ide.CopyPasteManager
+import com.intellij.openapi.util.text.StringUtil
+import com.sourcegraph.cody.agent.JsonRpcMetrics
+import com.sourcegraph.common.ui.DumbAwareEDTAction
+import java.awt.datatransfer.StringSelection
+
+class JsonRpcStatsAction : DumbAwareEDTAction() {
+  override fun update(e: AnActionEvent) {
+    super.update(e)
+    val messages = JsonRpcMetrics.totalMessages()
+    val size = StringUtil.formatFileSize(JsonRpcMetrics.totalBytes())
+    e.presentation.text = "JSON-RPC: $messages messages, $size (copy per-method stats)"
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    val dump = JsonRpcMetrics.dump()
+    logger.info("JSON-RPC statistics:\n$dump")
+    CopyPasteManager.getInstance().setContents(StringSelection(dump))
+  }
+
+  companion object {
+    private val logger = Logger.getInstance(JsonRpcStatsAction::class.java)
+  }
+}
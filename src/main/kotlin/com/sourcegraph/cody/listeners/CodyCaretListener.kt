@@ -5,8 +5,6 @@ import com.intellij.openapi.editor.EditorKind
 import com.intellij.openapi.editor.event.CaretEvent
 import com.intellij.openapi.editor.event.CaretListener
 import com.intellij.openapi.project.Project
-import com.sourcegraph.cody.agent.CodyAgent
-import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
 import com.sourcegraph.cody.autocomplete.CodyAutocompleteManager
 import com.sourcegraph.cody.vscode.InlineCompletionTriggerKind
@@ -28,9 +26,7 @@ class CodyCaretListener(val project: Project) : CaretListener {
 
     ProtocolTextDocumentExt.fromEditorWithOffsetSelection(e.editor, e)?.let { textDocument ->
       EditorChangesBus.documentChanged(project, textDocument)
-      CodyAgentService.withAgent(project) { agent: CodyAgent ->
-        agent.server.textDocument_didChange(textDocument)
-      }
+      DocumentSyncQueue.getInstance(project).didChange(textDocument)
     }
 
     CodyAutocompleteManager.instance.clearAutocompleteSuggestions(e.editor)
@@ -4,13 +4,13 @@ import com.intellij.openapi.application.runInEdt
 import com.intellij.openapi.editor.event.BulkAwareDocumentListener
 import com.intellij.openapi.editor.event.DocumentEvent
 import com.intellij.openapi.project.Project
-import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol_extensions.BillingMetadata
 import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
 import com.sourcegraph.cody.agent.protocol_generated.BillingMetadataParams
 import com.sourcegraph.cody.agent.protocol_generated.CompletionItemParams
 import com.sourcegraph.cody.autocomplete.CodyAutocompleteManager
 import com.sourcegraph.cody.autocomplete.action.AcceptCodyAutocompleteAction
+import com.sourcegraph.cody.edit.EditService
 import com.sourcegraph.cody.telemetry.TelemetryV2
 import com.sourcegraph.cody.vscode.InlineCompletionTriggerKind
 import com.sourcegraph.utils.CodyEditorUtil
@@ -50,6 +50,17 @@ class CodyDocumentListener(val project: Project) : BulkAwareDocumentListener {
       return
     }
 
+    if (EditService.isApplyingAgentEdit(event.document)) {
+      // Edits requested by the agent aren't user typing: only sync them. DocumentSyncQueue merges
+      // the incremental changes of a batch into a single `textDocument/didChange`.
+      CodyAutocompleteManager.instance.clearAutocompleteSuggestions(editor)
+      ProtocolTextDocumentExt.fromEditorForDocumentEvent(editor, event)?.let { textDocument ->
+        EditorChangesBus.documentChanged(project, textDocument)
+        DocumentSyncQueue.getInstance(project).didChange(textDocument)
+      }
+      return
+    }
+
     logCodeCopyPastedFromChat(event)
     CodyAutocompleteManager.instance.clearAutocompleteSuggestions(editor)
 
@@ -59,13 +70,14 @@ class CodyDocumentListener(val project: Project) : BulkAwareDocumentListener {
 
     ProtocolTextDocumentExt.fromEditorForDocumentEvent(editor, event)?.let { textDocument ->
       EditorChangesBus.documentChanged(project, textDocument)
-      CodyAgentService.withAgent(project) { agent ->
-        agent.server.textDocument_didChange(textDocument)
-
-        // This notification must be sent after the above, see tracker comment for more
-        // details.
-        AcceptCodyAutocompleteAction.tracker.getAndSet(null)?.let { completionID ->
-          agent.server.autocomplete_completionAccepted(CompletionItemParams(completionID))
+      val acceptedCompletionID = AcceptCodyAutocompleteAction.tracker.getAndSet(null)
+      if (acceptedCompletionID == null) {
+        DocumentSyncQueue.getInstance(project).didChange(textDocument)
+      } else {
+        DocumentSyncQueue.getInstance(project).didChange(textDocument) { agent ->
+          // This notification must be sent after the above, see tracker comment for more
+          // details.
+          agent.server.autocomplete_completionAccepted(CompletionItemParams(acceptedCompletionID))
           agent.server.autocomplete_clearLastCandidate(null)
         }
       }
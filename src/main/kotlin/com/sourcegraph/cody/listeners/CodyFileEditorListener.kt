@@ -9,9 +9,8 @@ import com.intellij.openapi.fileEditor.TextEditor
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.vfs.VirtualFile
 import com.sourcegraph.cody.agent.CodyAgent
-import com.sourcegraph.cody.agent.CodyAgentService.Companion.withAgent
 import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
-import com.sourcegraph.cody.agent.protocol_generated.TextDocument_DidFocusParams
+import com.sourcegraph.cody.inspections.DiagnosticsPublisher
 import com.sourcegraph.utils.CodyEditorUtil
 
 class CodyFileEditorListener : FileEditorManagerListener {
@@ -24,9 +23,7 @@ class CodyFileEditorListener : FileEditorManagerListener {
       val protocolTextFile = ProtocolTextDocumentExt.fromVirtualEditorFile(editor, file)
       EditorChangesBus.documentChanged(editor.project, protocolTextFile)
 
-      withAgent(source.project) { agent: CodyAgent ->
-        agent.server.textDocument_didOpen(protocolTextFile)
-      }
+      DocumentSyncQueue.getInstance(source.project).didOpen(protocolTextFile)
     } catch (x: Exception) {
       logger.warn("Error in fileOpened method for file: ${file.path}", x)
     }
@@ -36,9 +33,8 @@ class CodyFileEditorListener : FileEditorManagerListener {
     try {
       val protocolTextFile = ProtocolTextDocumentExt.fromVirtualFile(file)
       EditorChangesBus.documentChanged(source.project, protocolTextFile)
-      withAgent(source.project) { agent: CodyAgent ->
-        agent.server.textDocument_didClose(protocolTextFile)
-      }
+      DocumentSyncQueue.getInstance(source.project).didClose(protocolTextFile)
+      DiagnosticsPublisher.getInstance(source.project).fileClosed(protocolTextFile.uri)
     } catch (x: Exception) {
       logger.warn("Error in fileClosed method for file: ${file.path}", x)
     }
@@ -52,28 +48,38 @@ class CodyFileEditorListener : FileEditorManagerListener {
     fun registerAllOpenedFiles(project: Project, codyAgent: CodyAgent) {
 
       ApplicationManager.getApplication().invokeLater {
+        if (project.isDisposed) return@invokeLater
         val fileDocumentManager = FileDocumentManager.getInstance()
+        val selectedEditors = CodyEditorUtil.getSelectedEditors(project).toSet()
 
-        CodyEditorUtil.getAllOpenEditors().forEach { editor ->
-          fileDocumentManager.getFile(editor.document)?.let { file ->
-            try {
-              val textDocument = ProtocolTextDocumentExt.fromVirtualEditorFile(editor, file)
-              codyAgent.server.textDocument_didOpen(textDocument)
-            } catch (x: Exception) {
-              logger.warn("Error calling textDocument/didOpen for file: ${file.path}", x)
-            }
-          }
-        }
-
-        if (project.isDisposed) return@invokeLater
-        CodyEditorUtil.getSelectedEditors(project).forEach { editor ->
-          val file = fileDocumentManager.getFile(editor.document)
-          try {
-            val textDocument = ProtocolTextDocumentExt.fromVirtualEditorFile(editor, file!!)
-            codyAgent.server.textDocument_didFocus(TextDocument_DidFocusParams(textDocument.uri))
-          } catch (x: Exception) {
-            logger.warn("Error calling textDocument/didFocus on ${file?.path}", x)
-          }
+        // Focused editors first, then the other visible ones, then the remaining tabs.
+        val editors =
+            CodyEditorUtil.getOpenEditors(project)
+                .filter { !it.isDisposed }
+                .sortedBy { editor ->
+                  when {
+                    editor in selectedEditors -> 0
+                    editor.component.isShowing -> 1
+                    else -> 2
+                  }
+                }
+        val documents =
+            editors
+                .mapNotNull { editor ->
+                  val file = fileDocumentManager.getFile(editor.document) ?: return@mapNotNull null
+                  try {
+                    OpenedFilesReplayTask.OpenedDocument(
+                        ProtocolTextDocumentExt.fromVirtualEditorFileWithoutContent(editor, file),
+                        editor.document,
+                        isFocused = editor in selectedEditors)
+                  } catch (x: Exception) {
+                    logger.warn("Error reading editor state for file: ${file.path}", x)
+                    null
+                  }
+                }
+                .distinctBy { it.textDocument.uri }
+        if (documents.isNotEmpty()) {
+          OpenedFilesReplayTask(project, codyAgent, documents).queue()
         }
       }
     }
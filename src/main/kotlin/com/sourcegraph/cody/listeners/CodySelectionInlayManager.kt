@@ -1,6 +1,8 @@
 package com.sourcegraph.cody.listeners
 
 import com.intellij.openapi.actionSystem.KeyboardShortcut
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.runInEdt
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.EditorCustomElementRenderer
 import com.intellij.openapi.editor.Inlay
@@ -8,9 +10,13 @@ import com.intellij.openapi.editor.colors.EditorColors
 import com.intellij.openapi.editor.colors.EditorFontType
 import com.intellij.openapi.editor.event.SelectionEvent
 import com.intellij.openapi.editor.markup.TextAttributes
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.keymap.Keymap
 import com.intellij.openapi.keymap.KeymapManager
+import com.intellij.openapi.keymap.KeymapManagerListener
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.Disposer
+import com.intellij.util.concurrency.annotations.RequiresEdt
 import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol_generated.Ignore_TestResult
 import com.sourcegraph.cody.auth.CodyAccount
@@ -24,22 +30,46 @@ import java.awt.Rectangle
 import java.awt.event.KeyEvent
 import java.awt.geom.GeneralPath
 import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
 
 class CodySelectionInlayManager(val project: Project) {
   private var currentInlay: Inlay<*>? = null
 
+  // Incremented on every selection change, so that late ignore policy lookups can tell whether
+  // their selection is still the current one.
+  private var selectionGeneration = 0L
+
   private val disposable = Disposer.newDisposable()
 
+  private val shortcutTexts = ConcurrentHashMap<String, String>()
+
+  init {
+    // The manager lives as long as the project, and the keymap subscription below must not
+    // outlive it. CodyAgentService is a project service, so it is disposed with the project.
+    Disposer.register(CodyAgentService.getInstance(project), disposable)
+    ApplicationManager.getApplication()
+        .messageBus
+        .connect(disposable)
+        .subscribe(
+            KeymapManagerListener.TOPIC,
+            object : KeymapManagerListener {
+              override fun activeKeymapChanged(keymap: Keymap?) = shortcutTexts.clear()
+
+              override fun shortcutChanged(keymap: Keymap, actionId: String) =
+                  shortcutTexts.clear()
+            })
+  }
+
+  @RequiresEdt
   fun handleSelectionChanged(editor: Editor, event: SelectionEvent) {
     clearInlay()
+    val generation = ++selectionGeneration
 
     if (!ConfigUtil.isCodyEnabled() ||
         !CodyAgentService.isConnected(project) ||
         !ConfigUtil.isCodyUIHintsEnabled() ||
         !CodyEditorUtil.isEditorValidForAutocomplete(editor) ||
-        !CodyAccount.hasActiveAccount() ||
-        IgnoreOracle.getInstance(project).policyForEditor(editor) !=
-            Ignore_TestResult.PolicyEnum.Use) {
+        !CodyAccount.hasActiveAccount()) {
       return
     }
 
@@ -56,12 +86,32 @@ class CodySelectionInlayManager(val project: Project) {
     if (startLine == selectionEndLine) {
       return
     }
-    val editShortcutText = getKeyStrokeText("cody.editCodeAction")
+    val editShortcutText = shortcutTexts.computeIfAbsent("cody.editCodeAction", ::getKeyStrokeText)
     val inlayContent = "$editShortcutText  to Edit"
 
     val bottomLine = // Try to put it beneath the selection. At the end was unpopular.
         if (selectionEndLine + 1 < document.lineCount) selectionEndLine + 1 else selectionEndLine
-    updateInlay(editor, inlayContent, bottomLine)
+
+    // The policy of the focused file is normally cached already. If not, don't block the EDT on
+    // the agent: show the hint once the policy arrives, if the selection hasn't changed meanwhile.
+    val url = FileDocumentManager.getInstance().getFile(document)?.url ?: return
+    val policy = IgnoreOracle.getInstance(project).policyForUri(url)
+    if (policy.isDone) {
+      if (policy.getNow(null) == Ignore_TestResult.PolicyEnum.Use) {
+        updateInlay(editor, inlayContent, bottomLine)
+      }
+      return
+    }
+    policy.thenAccept { result ->
+      if (result != Ignore_TestResult.PolicyEnum.Use) return@thenAccept
+      runInEdt {
+        if (generation == selectionGeneration &&
+            !editor.isDisposed &&
+            bottomLine < editor.document.lineCount) {
+          updateInlay(editor, inlayContent, bottomLine)
+        }
+      }
+    }
   }
 
   private fun updateInlay(editor: Editor, content: String, line: Int) {
@@ -69,12 +119,21 @@ class CodySelectionInlayManager(val project: Project) {
         .addInlineElement(
             editor.document.getLineEndOffset(line),
             object : EditorCustomElementRenderer {
+              // Derived from the editor font, and recomputed only when that changes (e.g. when
+              // the color scheme or the zoom level changes), not on every paint.
+              private var baseFont: Font? = null
+              private var smallerFont: Font? = null
 
               private fun getFont() = editor.colorsScheme.getFont(EditorFontType.PLAIN)
 
               private fun getSmallerFont(): Font {
                 val font = getFont()
-                return Font(font.name, font.style.or(Font.BOLD), font.size - 2)
+                val cached = smallerFont
+                if (cached != null && baseFont == font) return cached
+                return Font(font.name, font.style.or(Font.BOLD), font.size - 2).also {
+                  baseFont = font
+                  smallerFont = it
+                }
               }
 
               private fun getSmallerFontMetrics() =
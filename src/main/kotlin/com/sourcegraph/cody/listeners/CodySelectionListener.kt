@@ -4,7 +4,6 @@ import com.intellij.openapi.editor.EditorKind
 import com.intellij.openapi.editor.event.SelectionEvent
 import com.intellij.openapi.editor.event.SelectionListener
 import com.intellij.openapi.project.Project
-import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
 import com.sourcegraph.cody.autocomplete.CodyAutocompleteManager
 import com.sourcegraph.config.ConfigUtil
@@ -22,9 +21,7 @@ class CodySelectionListener(val project: Project) : SelectionListener {
     val editor = event.editor
     ProtocolTextDocumentExt.fromEditorWithRangeSelection(editor, event)?.let { textDocument ->
       EditorChangesBus.documentChanged(project, textDocument)
-      CodyAgentService.withAgent(project) { agent ->
-        agent.server.textDocument_didChange(textDocument)
-      }
+      DocumentSyncQueue.getInstance(project).didChange(textDocument)
     }
 
     CodyAutocompleteManager.instance.clearAutocompleteSuggestions(editor)
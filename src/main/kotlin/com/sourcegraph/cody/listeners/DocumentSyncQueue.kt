@@ -0,0 +1,203 @@
+package com.sourcegraph.cody.listeners
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.project.Project
+import com.sourcegraph.cody.agent.CodyAgent
+import com.sourcegraph.cody.agent.CodyAgentService
+import com.sourcegraph.cody.agent.protocol_generated.ProtocolTextDocument
+import com.sourcegraph.cody.config.CodyApplicationSettings
+import org.jetbrains.annotations.VisibleForTesting
+
+/**
+ * Ordered, single-writer pipeline for document synchronization notifications.
+ *
+ * Editor listeners fire on every keystroke, caret move and selection change. Instead of hopping to
+ * a fresh pooled thread per event (which doesn't guarantee ordering), events are appended to a
+ * per-project FIFO queue which is drained by at most one flush task at a time. While a flush is
+ * pending, consecutive events for the same document are merged:
+ * - caret/selection-only updates replace each other,
+ * - incremental `contentChanges` are concatenated into a single `textDocument/didChange`,
+ * - `didOpen`/`didClose` are never merged, so edit order is strictly preserved.
+ *
+ * A flush keeps draining the queue until it is empty, so notifications queued while a batch is
+ * being sent are picked up by the same flush rather than by a second, concurrent one. A flush that
+ * hasn't started within [STALE_FLUSH_MSEC] (e.g. because the agent failed to start) is abandoned
+ * and replaced by a new one on the next notification, rather than queueing notifications forever.
+ */
+@Service(Service.Level.PROJECT)
+class DocumentSyncQueue
+@VisibleForTesting
+internal constructor(
+    private val isEnabled: () -> Boolean,
+    private val scheduleFlush: ((CodyAgent) -> Unit) -> Unit,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+  constructor(
+      project: Project
+  ) : this(
+      isEnabled = { CodyApplicationSettings.instance.isCodyEnabled },
+      scheduleFlush = { flush -> CodyAgentService.withAgent(project) { agent -> flush(agent) } })
+
+  enum class Kind {
+    OPEN,
+    CHANGE,
+    CLOSE
+  }
+
+  private class PendingNotification(val kind: Kind, var textDocument: ProtocolTextDocument) {
+    val afterSync: MutableList<(CodyAgent) -> Unit> = mutableListOf()
+  }
+
+  // All fields below are guarded by `pending`.
+  private val pending = ArrayDeque<PendingNotification>()
+  private var isFlushScheduled = false
+  // When the scheduled flush was requested, or null once it has started.
+  private var flushScheduledAtMsec: Long? = null
+  private var generation = 0L
+
+  fun didOpen(textDocument: ProtocolTextDocument) = enqueue(Kind.OPEN, textDocument, null)
+
+  fun didClose(textDocument: ProtocolTextDocument) = enqueue(Kind.CLOSE, textDocument, null)
+
+  /**
+   * Queues a `textDocument/didChange` notification.
+   *
+   * @param afterSync optional action executed on the writer thread right after this change has been
+   *   sent to the agent. Changes with such an action are never merged with later changes.
+   */
+  fun didChange(textDocument: ProtocolTextDocument, afterSync: ((CodyAgent) -> Unit)? = null) =
+      enqueue(Kind.CHANGE, textDocument, afterSync)
+
+  private fun enqueue(
+      kind: Kind,
+      textDocument: ProtocolTextDocument,
+      afterSync: ((CodyAgent) -> Unit)?
+  ) {
+    if (!isEnabled()) return
+
+    val flushGeneration =
+        synchronized(pending) {
+          val last = pending.lastOrNull()
+          val merged =
+              if (kind == Kind.CHANGE &&
+                  last != null &&
+                  last.kind == Kind.CHANGE &&
+                  last.afterSync.isEmpty()) {
+                merge(last.textDocument, textDocument)
+              } else {
+                null
+              }
+          val target =
+              if (last != null && merged != null) {
+                last.textDocument = merged
+                last
+              } else {
+                PendingNotification(kind, textDocument).also { pending.addLast(it) }
+              }
+          afterSync?.let { target.afterSync.add(it) }
+
+          val now = clock()
+          val scheduledAt = flushScheduledAtMsec
+          if (isFlushScheduled) {
+            if (scheduledAt == null || now - scheduledAt <= STALE_FLUSH_MSEC) return
+            // The scheduled flush never started. If it ever does, it must not run concurrently
+            // with the one scheduled below.
+            logger.warn("Document sync flush didn't start in ${STALE_FLUSH_MSEC}ms, rescheduling")
+            generation++
+          }
+          isFlushScheduled = true
+          flushScheduledAtMsec = now
+          generation
+        }
+
+    scheduleFlush { agent -> flush(agent, flushGeneration) }
+  }
+
+  private fun flush(agent: CodyAgent, flushGeneration: Long) {
+    while (true) {
+      val batch =
+          synchronized(pending) {
+            // After a reset or a rescheduled stale flush, the flag belongs to a newer flush.
+            if (flushGeneration != generation) return
+            flushScheduledAtMsec = null
+            if (pending.isEmpty()) {
+              isFlushScheduled = false
+              return
+            }
+            val batch = pending.toList()
+            pending.clear()
+            batch
+          }
+
+      for (notification in batch) {
+        try {
+          when (notification.kind) {
+            Kind.OPEN -> agent.server.textDocument_didOpen(notification.textDocument)
+            Kind.CHANGE -> agent.server.textDocument_didChange(notification.textDocument)
+            Kind.CLOSE -> agent.server.textDocument_didClose(notification.textDocument)
+          }
+          notification.afterSync.forEach { it(agent) }
+        } catch (e: Exception) {
+          logger.warn("Failed to sync document ${notification.textDocument.uri}", e)
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops all pending notifications. Called when the agent is stopped: a restarted agent receives
+   * full document contents again via `textDocument/didOpen`, so stale incremental changes must not
+   * be replayed against it.
+   */
+  fun reset() {
+    synchronized(pending) {
+      pending.clear()
+      isFlushScheduled = false
+      flushScheduledAtMsec = null
+      generation++
+    }
+  }
+
+  companion object {
+    private val logger = Logger.getInstance(DocumentSyncQueue::class.java)
+
+    @VisibleForTesting internal const val STALE_FLUSH_MSEC = 5_000L
+
+    @JvmStatic
+    fun getInstance(project: Project): DocumentSyncQueue {
+      return project.service<DocumentSyncQueue>()
+    }
+
+    /**
+     * Merges two consecutive `textDocument/didChange` notifications into one, or returns null if
+     * they cannot be merged without changing their meaning.
+     */
+    @VisibleForTesting
+    fun merge(previous: ProtocolTextDocument, next: ProtocolTextDocument): ProtocolTextDocument? {
+      if (previous.uri != next.uri) return null
+
+      val isNextSelectionOnly = next.content == null && next.contentChanges.isNullOrEmpty()
+      if (isNextSelectionOnly) {
+        return previous.copy(
+            selection = next.selection ?: previous.selection,
+            visibleRange = next.visibleRange ?: previous.visibleRange,
+            testing = next.testing ?: previous.testing)
+      }
+
+      // Full document content supersedes anything we have queued before.
+      if (next.content != null) {
+        return next.copy(selection = next.selection ?: previous.selection)
+      }
+
+      // `next` is an incremental change from here on.
+      if (previous.content != null) return null
+      return next.copy(
+          contentChanges = previous.contentChanges.orEmpty() + next.contentChanges.orEmpty(),
+          selection = next.selection ?: previous.selection,
+          visibleRange = next.visibleRange ?: previous.visibleRange)
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.sourcegraph.cody.listeners
+
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import com.sourcegraph.cody.agent.CodyAgent
+import com.sourcegraph.cody.agent.protocol_extensions.ProtocolTextDocumentExt
+import com.sourcegraph.cody.agent.protocol_generated.ProtocolTextDocument
+import com.sourcegraph.cody.agent.protocol_generated.TextDocument_DidFocusParams
+import com.sourcegraph.common.CodyBundle
+import com.sourcegraph.common.CodyBundle.fmt
+
+/**
+ * Sends `textDocument/didOpen` for the files open in a project to a (re)started agent.
+ *
+ * Only the editor state is captured on the EDT. Document contents are copied in the background, in
+ * batches of `cody.agent.replayBatchSize` documents. Each batch is copied and sent under one short
+ * read action, so it can't interleave with edits whose `didChange` would otherwise reach the agent
+ * before the content they apply to. [documents] are expected in priority order: the focused files
+ * come first and get their `textDocument/didFocus` as soon as they are open.
+ */
+internal class OpenedFilesReplayTask(
+    project: Project,
+    private val agent: CodyAgent,
+    private val documents: List<OpenedDocument>
+) : Task.Backgroundable(project, CodyBundle.getString("agent.replay-opened-files.title"), false) {
+
+  class OpenedDocument(
+      val textDocument: ProtocolTextDocument,
+      val document: Document,
+      val isFocused: Boolean
+  )
+
+  override fun run(indicator: ProgressIndicator) {
+    indicator.isIndeterminate = false
+    val (focused, others) = documents.partition { it.isFocused }
+    val batches = listOf(focused).filter { it.isNotEmpty() } + others.chunked(batchSize)
+    var sent = 0
+    for (batch in batches) {
+      if (project.isDisposed || !agent.isConnected()) return
+      ReadAction.run<RuntimeException> { batch.forEach(::didOpen) }
+      sent += batch.size
+      indicator.fraction = sent.toDouble() / documents.size
+      indicator.text2 =
+          CodyBundle.getString("agent.replay-opened-files.progress")
+              .fmt(sent.toString(), documents.size.toString())
+    }
+  }
+
+  private fun didOpen(openedDocument: OpenedDocument) {
+    val uri = openedDocument.textDocument.uri
+    try {
+      agent.server.textDocument_didOpen(
+          ProtocolTextDocumentExt.withContent(
+              openedDocument.textDocument, openedDocument.document.text))
+      if (openedDocument.isFocused) {
+        agent.server.textDocument_didFocus(TextDocument_DidFocusParams(uri))
+      }
+    } catch (x: Exception) {
+      logger.warn("Error calling textDocument/didOpen for file: $uri", x)
+    }
+  }
+
+  companion object {
+    private val logger = Logger.getInstance(OpenedFilesReplayTask::class.java)
+
+    private val batchSize =
+        System.getProperty("cody.agent.replayBatchSize", "16").toInt().coerceAtLeast(1)
+  }
+}
@@ -7,48 +7,75 @@ import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.application.invokeLater
 import com.sourcegraph.config.ThemeUtil
 import java.awt.Color
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.swing.UIManager
 
+/**
+ * Computes the theme of webviews from the Swing look and feel.
+ *
+ * UI settings events come in bursts (a font size change or presentation mode toggle fires several),
+ * so they are coalesced into one computation per EDT pass, and the listener is only notified when
+ * the resulting theme differs from the previous one.
+ */
 class WebThemeController(parentDisposable: Disposable) {
   private var themeChangeListener: ((WebTheme) -> Unit)? = null
+  private val isUpdateScheduled = AtomicBoolean()
+  @Volatile private var lastTheme: WebTheme? = null
 
   init {
     UIManager.addPropertyChangeListener { event ->
       if (event.propertyName == "lookAndFeel") {
-        invokeLater { themeChangeListener?.invoke(getTheme()) }
+        scheduleUpdate()
       }
     }
 
     ApplicationManager.getApplication()
         .messageBus
         .connect(parentDisposable)
-        .subscribe(
-            UISettingsListener.TOPIC,
-            UISettingsListener { _ -> invokeLater { themeChangeListener?.invoke(getTheme()) } })
+        .subscribe(UISettingsListener.TOPIC, UISettingsListener { _ -> scheduleUpdate() })
   }
 
   fun setThemeChangeListener(listener: (WebTheme) -> Unit) {
     themeChangeListener = listener
   }
 
-  fun getTheme(): WebTheme {
-    val colorVariables =
-        UIManager.getDefaults()
-            .filterValues { it is Color }
-            .mapKeys { toCSSVariableName(it.key.toString()) }
-            .mapValues { toCSSColor(it.value as Color) }
+  private fun scheduleUpdate() {
+    if (!isUpdateScheduled.compareAndSet(false, true)) return
+    invokeLater {
+      isUpdateScheduled.set(false)
+      val theme = computeTheme()
+      if (theme == lastTheme) return@invokeLater
+      lastTheme = theme
+      themeChangeListener?.invoke(theme)
+    }
+  }
 
-    val fontSizeVariable =
-        (toCSSVariableName("font-size") to "${UISettings.getInstance().fontSize}px")
+  fun getTheme(): WebTheme = lastTheme ?: computeTheme().also { lastTheme = it }
 
-    return WebTheme(ThemeUtil.isDarkTheme(), colorVariables + fontSizeVariable)
+  private fun computeTheme(): WebTheme {
+    val variables = HashMap<String, String>()
+    for ((key, value) in UIManager.getDefaults()) {
+      if (value is Color) variables[toCSSVariableName(key.toString())] = toCSSColor(value)
+    }
+    variables[toCSSVariableName("font-size")] = "${UISettings.getInstance().fontSize}px"
+    return WebTheme(ThemeUtil.isDarkTheme(), variables)
   }
 
   private fun toCSSColor(value: Color) =
       "rgb(${value.red} ${value.green} ${value.blue} / ${value.alpha / 255})"
 
-  private fun toCSSVariableName(key: String) =
-      "--jetbrains-${key.replace(Regex("[^-_a-zA-Z0-9]"), "-")}"
+  companion object {
+    private val invalidCSSNameCharacters = Regex("[^-_a-zA-Z0-9]")
+
+    // UI default keys are a fixed set, so their variable names are only computed once.
+    private val cssVariableNames = ConcurrentHashMap<String, String>()
+
+    private fun toCSSVariableName(key: String) =
+        cssVariableNames.computeIfAbsent(key) {
+          "--jetbrains-${it.replace(invalidCSSNameCharacters, "-")}"
+        }
+  }
 }
 
-class WebTheme(val isDark: Boolean, val variables: Map<String, String>) {}
+data class WebTheme(val isDark: Boolean, val variables: Map<String, String>)
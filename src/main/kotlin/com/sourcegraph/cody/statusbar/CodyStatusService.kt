@@ -5,22 +5,52 @@ import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.components.Service
 import com.intellij.openapi.components.service
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.project.ProjectManager
-import com.intellij.util.ui.UIUtil
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.auth.CodyAccount
 import com.sourcegraph.cody.ignore.IgnoreOracle
 import com.sourcegraph.common.UpgradeToCodyProNotification
 import com.sourcegraph.config.ConfigUtil
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import org.jetbrains.annotations.VisibleForTesting
 
+/**
+ * Tracks the Cody status of a project, shown by [CodyStatusBarWidget].
+ *
+ * The status is derived from a few input signals (see [Signals]). Autocomplete resets it on every
+ * keystroke, so [onCodyAutocompleteStatusReset] only records the request and schedules one
+ * evaluation per [REFRESH_DELAY_MS]; further resets within that window cost an atomic compare.
+ * Widget repaints are coalesced the same way and only happen when the status changed.
+ */
 @Service(Service.Level.PROJECT)
 class CodyStatusService(val project: Project) : Disposable {
 
+  /** Inputs the status is derived from, in order of precedence. */
+  data class Signals(
+      val isCodyEnabled: Boolean,
+      val hasAgentError: Boolean,
+      val isAgentConnected: Boolean,
+      val hasActiveAccount: Boolean,
+      val isRateLimited: Boolean,
+      val isEditingIgnoredFile: Boolean,
+      val isAutocompleteEnabled: Boolean
+  )
+
   @Volatile private var status: CodyStatus = CodyStatus.CodyUninit
 
+  // Bumped whenever the status is set explicitly. A pending reset requested before that is dropped,
+  // so that e.g. an earlier keystroke doesn't override "autocomplete in progress".
+  private val explicitStatusVersion = AtomicLong()
+  @Volatile private var resetRequestedAtVersion = 0L
+  private val isRefreshScheduled = AtomicBoolean()
+  private val isRepaintScheduled = AtomicBoolean()
+
   fun onCodyAutocompleteStatus(codyStatus: CodyStatus) {
     val notify =
         synchronized(this) {
+          explicitStatusVersion.incrementAndGet()
           val oldStatus = status
           status = codyStatus
           return@synchronized oldStatus != codyStatus
@@ -31,51 +61,49 @@ class CodyStatusService(val project: Project) : Disposable {
   }
 
   fun onCodyAutocompleteStatusReset() {
-    ApplicationManager.getApplication().executeOnPooledThread {
-      if (!project.isDisposed) {
-        val notify = didStatusChange(project)
-        if (notify) {
-          updateCodyStatusBarIcons()
+    resetRequestedAtVersion = explicitStatusVersion.get()
+    if (!isRefreshScheduled.compareAndSet(false, true)) return
+    AppExecutorUtil.getAppScheduledExecutorService()
+        .schedule(::refresh, REFRESH_DELAY_MS, TimeUnit.MILLISECONDS)
+  }
+
+  private fun refresh() {
+    isRefreshScheduled.set(false)
+    if (project.isDisposed) return
+    val notify =
+        synchronized(this) {
+          if (resetRequestedAtVersion != explicitStatusVersion.get()) return
+          val oldStatus = status
+          status = statusFor(currentSignals())
+          oldStatus != status
         }
-      }
+    if (notify) {
+      updateCodyStatusBarIcons()
     }
   }
 
-  private fun didStatusChange(project: Project): Boolean {
-    synchronized(this) {
-      val oldStatus = status
-
-      // Note, the order of these clauses is important because earlier clauses take precedence over
-      // later ones.
-      // Fundamental issues are tested first.
-      status =
-          if (!ConfigUtil.isCodyEnabled()) {
-            CodyStatus.CodyDisabled
-          } else if (CodyAgentService.agentError.get() != null) {
-            CodyStatus.AgentError
-          } else if (!CodyAgentService.isConnected(project)) {
-            CodyStatus.CodyAgentNotRunning
-          } else if (!CodyAccount.hasActiveAccount()) {
-            CodyStatus.CodyNotSignedIn
-          } else if (UpgradeToCodyProNotification.autocompleteRateLimitError.get() != null ||
-              UpgradeToCodyProNotification.chatRateLimitError.get() != null) {
-            CodyStatus.RateLimitError
-          } else if (IgnoreOracle.getInstance(project).isEditingIgnoredFile) {
-            CodyStatus.InIgnoredFile
-          } else if (!ConfigUtil.isCodyAutocompleteEnabled()) {
-            CodyStatus.AutocompleteDisabled
-          } else {
-            CodyStatus.Ready
-          }
-      return oldStatus != status
-    }
+  private fun currentSignals(): Signals {
+    // When Cody is disabled nothing else matters, so skip looking up the agent and the account.
+    val isCodyEnabled = ConfigUtil.isCodyEnabled()
+    return Signals(
+        isCodyEnabled = isCodyEnabled,
+        hasAgentError = isCodyEnabled && CodyAgentService.agentError.get() != null,
+        isAgentConnected = isCodyEnabled && CodyAgentService.isConnected(project),
+        hasActiveAccount = isCodyEnabled && CodyAccount.hasActiveAccount(),
+        isRateLimited =
+            UpgradeToCodyProNotification.autocompleteRateLimitError.get() != null ||
+                UpgradeToCodyProNotification.chatRateLimitError.get() != null,
+        isEditingIgnoredFile =
+            isCodyEnabled && IgnoreOracle.getInstance(project).isEditingIgnoredFile,
+        isAutocompleteEnabled = ConfigUtil.isCodyAutocompleteEnabled())
   }
 
   private fun updateCodyStatusBarIcons() {
-    UIUtil.invokeLaterIfNeeded {
-      val openProjects = ProjectManager.getInstance().openProjects
-      openProjects.forEach { project ->
-        project.takeIf { !it.isDisposed }?.let { CodyStatusBarWidget.update(it) }
+    if (!isRepaintScheduled.compareAndSet(false, true)) return
+    ApplicationManager.getApplication().invokeLater {
+      isRepaintScheduled.set(false)
+      if (!project.isDisposed) {
+        CodyStatusBarWidget.update(project)
       }
     }
   }
@@ -89,6 +117,22 @@ class CodyStatusService(val project: Project) : Disposable {
   override fun dispose() = Unit
 
   companion object {
+    private const val REFRESH_DELAY_MS = 16L
+
+    // Note, the order of these clauses is important because earlier clauses take precedence over
+    // later ones. Fundamental issues are tested first.
+    @VisibleForTesting
+    fun statusFor(signals: Signals): CodyStatus =
+        when {
+          !signals.isCodyEnabled -> CodyStatus.CodyDisabled
+          signals.hasAgentError -> CodyStatus.AgentError
+          !signals.isAgentConnected -> CodyStatus.CodyAgentNotRunning
+          !signals.hasActiveAccount -> CodyStatus.CodyNotSignedIn
+          signals.isRateLimited -> CodyStatus.RateLimitError
+          signals.isEditingIgnoredFile -> CodyStatus.InIgnoredFile
+          !signals.isAutocompleteEnabled -> CodyStatus.AutocompleteDisabled
+          else -> CodyStatus.Ready
+        }
 
     fun getInstance(project: Project): CodyStatusService {
       return project.service<CodyStatusService>()
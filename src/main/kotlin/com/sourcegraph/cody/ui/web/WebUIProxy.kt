@@ -1,6 +1,6 @@
 package com.sourcegraph.cody.ui.web
 
-import com.google.gson.GsonBuilder
+import com.google.gson.Gson
 import com.google.gson.JsonParser
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
@@ -9,6 +9,7 @@ import com.intellij.openapi.project.ProjectManager
 import com.intellij.ui.jcef.JBCefBrowserBase
 import com.intellij.ui.jcef.JBCefBrowserBuilder
 import com.intellij.ui.jcef.JBCefJSQuery
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.sourcegraph.cody.agent.CodyAgent
 import com.sourcegraph.cody.agent.CodyAgentService
 import com.sourcegraph.cody.agent.protocol.WebviewOptions
@@ -18,15 +19,10 @@ import com.sourcegraph.cody.telemetry.TelemetryV2
 import com.sourcegraph.common.BrowserOpener
 import java.awt.Component
 import java.awt.datatransfer.StringSelection
-import java.io.IOException
 import java.net.URI
-import java.nio.ByteBuffer
-import java.nio.channels.AsynchronousFileChannel
-import java.nio.channels.CompletionHandler
 import java.nio.charset.StandardCharsets
-import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
 import javax.swing.JComponent
-import kotlin.io.path.Path
 import kotlin.math.min
 import org.cef.browser.CefBrowser
 import org.cef.browser.CefFrame
@@ -59,8 +55,16 @@ private const val COMMAND_PREFIX = "command:"
 private const val PSEUDO_HOST_URL_PREFIX = "https://file+.sourcegraphstatic.com/"
 private const val MAIN_RESOURCE_URL = "${PSEUDO_HOST_URL_PREFIX}main-resource-nonce"
 
+// Dispatches a batch of host to webview messages. Defined by the API script injected in the page.
+private const val POST_MESSAGES_FUNCTION = "codyPostMessages"
+
+// Messages are flushed to the webview at most once per frame.
+private const val MESSAGE_BATCH_INTERVAL_MS = 16L
+
 internal class WebUIProxy(private val host: WebUIHost, private val browser: JBCefBrowserBase) {
   companion object {
+    private val gson = Gson()
+
     /**
      * TODO: Hopefully this can be removed when JetBrains will patch focus handler implementation
      *   https://youtrack.jetbrains.com/issue/IJPL-158952/Focus-issue-when-using-multiple-JCEF-instances
@@ -152,6 +156,13 @@ internal class WebUIProxy(private val host: WebUIHost, private val browser: JBCe
               });
           };
       })();
+      globalThis.$POST_MESSAGES_FUNCTION = function(messages) {
+          for (const data of messages) {
+              let e = new CustomEvent('message');
+              e.data = data;
+              window.dispatchEvent(e);
+          }
+      };
       delete window.parent;
       delete window.top;
       delete window.frameElement;
@@ -274,32 +285,60 @@ internal class WebUIProxy(private val host: WebUIHost, private val browser: JBCe
     host.onCommand(command)
   }
 
+  private val pendingMessages = StringBuilder()
+  private var isFlushScheduled = false
+  private var lastFlushMs = 0L
+
+  /**
+   * Queues a message for the webview. Messages are delivered in order, in batches of at most one
+   * per [MESSAGE_BATCH_INTERVAL_MS], so streamed responses don't compile a script per message.
+   */
   fun postMessageHostToWebview(stringEncodedJsonMessage: String) {
-    val code =
-        """
-      (() => {
-        let e = new CustomEvent('message');
-        e.data = ${stringEncodedJsonMessage};
-        window.dispatchEvent(e);
-      })()
-      """
-            .trimIndent()
+    val delayMs =
+        synchronized(pendingMessages) {
+          if (pendingMessages.isNotEmpty()) pendingMessages.append(',')
+          pendingMessages.append(stringEncodedJsonMessage)
+          if (isFlushScheduled) return
+          isFlushScheduled = true
+          lastFlushMs + MESSAGE_BATCH_INTERVAL_MS - System.currentTimeMillis()
+        }
+    AppExecutorUtil.getAppScheduledExecutorService()
+        .schedule(::flushMessages, delayMs.coerceAtLeast(0), TimeUnit.MILLISECONDS)
+  }
 
-    browser.cefBrowser.executeJavaScript(code, "cody://postMessage", 0)
+  private fun flushMessages() {
+    val batch =
+        synchronized(pendingMessages) {
+          isFlushScheduled = false
+          lastFlushMs = System.currentTimeMillis()
+          pendingMessages.toString().also { pendingMessages.setLength(0) }
+        }
+    if (batch.isEmpty() || browser.isDisposed) return
+    browser.cefBrowser.executeJavaScript(
+        "globalThis.$POST_MESSAGES_FUNCTION?.([$batch])", "cody://postMessage", 0)
   }
 
+  // The theme the webview currently has, so that an unchanged theme isn't sent again.
+  private var pushedTheme: WebTheme? = null
+
+  @Synchronized
   private fun onReady() {
     isReady = true
+    // A (re)loaded page has no theme yet.
+    pushedTheme = null
     theme?.let { updateTheme(it) }
   }
 
+  @Synchronized
   fun updateTheme(theme: WebTheme) {
-    val gson = GsonBuilder().create()
     this.theme = theme
     if (!this.isReady) {
       logger.info("not updating WebView theme before 'ready' event")
       return
     }
+    if (theme == pushedTheme) return
+    pushedTheme = theme
+
     val code =
         """
     (() => {
@@ -518,75 +557,27 @@ private class ExtensionResourceRequestHandler(
 }
 
 class ExtensionResourceHandler : CefResourceHandler {
-  private val logger = Logger.getInstance(ExtensionResourceHandler::class.java)
-  var status = 0
-  var bytesReadFromResource = 0L
-  private var bytesSent = 0L
-  private var bytesWaitingSend = ByteBuffer.allocate(512 * 1024).flip()
-
-  // correctly
-  private var contentLength = 0L
-  var contentType = "text/plain"
-  var readChannel: AsynchronousFileChannel? = null
+  private var resource: WebviewResourceCache.Resource? = null
+  private var status = 0
+  private var bytesSent = 0
 
   override fun processRequest(request: CefRequest, callback: CefCallback?): Boolean {
     val requestPath = URI(request.url).path.removePrefix("/")
+    val ifNoneMatch = request.getHeaderByName("If-None-Match")
 
-    ApplicationManager.getApplication().executeOnPooledThread {
-      // Find the plugin resources.
-      val codyDirOverride = System.getenv("CODY_DIR")
-      val resourcesPath =
-          if (codyDirOverride != null) {
-            Path(codyDirOverride).resolve("agent/dist")
-          } else {
-            CodyAgent.pluginDirectory()?.resolve("agent")
-          }
-      if (resourcesPath == null) {
-        logger.warn(
-            "Aborting WebView request for ${requestPath}, extension resource directory not found")
-        status = 500
-        callback?.Continue()
-        return@executeOnPooledThread
-      }
-
-      // Find the specific file being requested.
-      val filePath = resourcesPath.resolve(requestPath)
-      if (!filePath.startsWith(resourcesPath)) {
-        logger.warn("Aborting WebView request for ${requestPath}, attempted directory traversal?")
-        status = 400
-        callback?.Continue()
-        return@executeOnPooledThread
-      }
-
-      // Find the particulars of that file.
-      val file = filePath.toFile()
-      contentLength = file.length()
-      contentType =
-          when {
-            requestPath.endsWith(".css") -> "text/css"
-            requestPath.endsWith(".html") -> "text/html"
-            requestPath.endsWith(".js") -> "text/javascript"
-            requestPath.endsWith(".png") -> "image/png"
-            requestPath.endsWith(".svg") -> "image/svg+xml"
-            requestPath.endsWith(".ttf") -> "font/ttf"
-            else -> "text/plain"
-          }
+    fun respond(resource: WebviewResourceCache.Resource) {
+      this.resource = resource
+      status = if (resource.etag != null && resource.etag == ifNoneMatch) 304 else resource.status
+      callback?.Continue()
+    }
 
-      // Prepare to read the file contents.
-      try {
-        readChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ)
-      } catch (e: IOException) {
-        logger.warn(
-            "Failed to open file ${file.absolutePath} to serve extension WebView request $requestPath",
-            e)
-        status = 404
-        callback?.Continue()
-        return@executeOnPooledThread
+    val cached = WebviewResourceCache.getIfPresent(requestPath)
+    if (cached != null) {
+      respond(cached)
+    } else {
+      ApplicationManager.getApplication().executeOnPooledThread {
+        respond(WebviewResourceCache.get(requestPath))
       }
-
-      // We're ready to synthesize headers.
-      status = 200
-      callback?.Continue()
     }
     return true
   }
@@ -596,13 +587,18 @@ class ExtensionResourceHandler : CefResourceHandler {
       responseLength: IntRef?,
       redirectUrl: StringRef?
   ) {
+    val resource = resource
     response?.status = status
-    response?.mimeType = contentType
+    response?.mimeType = resource?.contentType ?: "text/plain"
     // TODO: Security, if we host malicious third-party content would this let them retrieve
     // resources they should not?
     response?.setHeaderByName("access-control-allow-origin", "*", false)
-    // TODO: Do we need to set content-encoding here?
-    responseLength?.set(contentLength.toInt())
+    if (resource?.etag != null) {
+      // Resources change when the plugin is updated, so let the browser revalidate them.
+      response?.setHeaderByName("cache-control", "no-cache", false)
+      response?.setHeaderByName("etag", resource.etag, false)
+    }
+    responseLength?.set(if (status == 200) resource?.content?.size ?: 0 else 0)
   }
 
   override fun readResponse(
@@ -611,67 +607,20 @@ class ExtensionResourceHandler : CefResourceHandler {
       bytesRead: IntRef?,
       callback: CefCallback?
   ): Boolean {
-    if (bytesSent >= contentLength || dataOut == null) {
-      try {
-        readChannel?.close()
-      } catch (_: IOException) {}
+    val content = resource?.content
+    if (status != 200 || content == null || dataOut == null || bytesSent >= content.size) {
       bytesRead?.set(0)
       return false
     }
-
-    if (bytesWaitingSend.remaining() > 0) {
-      val willSendNumBytes = min(bytesWaitingSend.remaining(), bytesToRead)
-      bytesWaitingSend.get(dataOut, 0, willSendNumBytes)
-      bytesRead?.set(willSendNumBytes)
-      return true
-    } else {
-      bytesWaitingSend.flip()
-      bytesWaitingSend.limit(bytesWaitingSend.capacity())
-    }
-
-    if (readChannel == null) {
-      // We need to read more, but the readChannel is closed.
-      bytesRead?.set(0)
-      return false
-    }
-
-    // Start an asynchronous read.
-    readChannel?.read(
-        bytesWaitingSend,
-        bytesReadFromResource,
-        null,
-        object : CompletionHandler<Int, Void?> {
-          override fun completed(result: Int, attachment: Void?) {
-            if (result == -1) {
-              try {
-                readChannel?.close()
-              } catch (_: IOException) {}
-              readChannel = null
-            } else {
-              bytesReadFromResource += result
-            }
-            bytesWaitingSend.flip()
-            callback?.Continue()
-          }
-
-          override fun failed(exc: Throwable?, attachment: Void?) {
-            try {
-              readChannel?.close()
-            } catch (_: IOException) {}
-            readChannel = null
-            callback?.Continue()
-          }
-        })
-
-    bytesRead?.set(0)
+    val bytesToCopy = min(content.size - bytesSent, bytesToRead)
+    System.arraycopy(content, bytesSent, dataOut, 0, bytesToCopy)
+    bytesSent += bytesToCopy
+    bytesRead?.set(bytesToCopy)
     return true
   }
 
   override fun cancel() {
-    try {
-      readChannel?.close()
-    } catch (_: IOException) {}
-    readChannel = null
+    resource = null
   }
 }
 
@@ -34,6 +34,8 @@ internal data class WebUIProxyCreationGate(
 class WebUIService(private val project: Project) : Disposable {
   companion object {
     @JvmStatic fun getInstance(project: Project): WebUIService = project.service<WebUIService>()
+
+    private const val CONFIG_TYPE_FIELD = "\"type\":\"config\""
   }
 
   private val logger = Logger.getInstance(WebUIService::class.java)
@@ -88,13 +90,17 @@ class WebUIService(private val project: Project) : Disposable {
   }
 
   internal fun postMessageHostToWebview(handle: String, stringEncodedJsonMessage: String) {
-    // Handle the config message
-    val decodedJson = JsonParser.parseString(stringEncodedJsonMessage).asJsonObject
-    if (decodedJson.get("type")?.asString == "config") {
-      val configFeatures = decodedJson.getAsJsonObject("configFeatures")
-      val serverSentModels = configFeatures?.get("serverSentModels")?.asBoolean ?: false
-      val currentConfigFeatures = project.service<CurrentConfigFeatures>()
-      currentConfigFeatures.update(ConfigFeatures(serverSentModels = serverSentModels))
+    // Handle the config message. The agent serializes messages with `JSON.stringify`, so a config
+    // message contains this exact field, and the same text inside a string value would be escaped.
+    // Only those messages are parsed.
+    if (stringEncodedJsonMessage.contains(CONFIG_TYPE_FIELD)) {
+      val decodedJson = JsonParser.parseString(stringEncodedJsonMessage).asJsonObject
+      if (decodedJson.get("type")?.asString == "config") {
+        val configFeatures = decodedJson.getAsJsonObject("configFeatures")
+        val serverSentModels = configFeatures?.get("serverSentModels")?.asBoolean ?: false
+        val currentConfigFeatures = project.service<CurrentConfigFeatures>()
+        currentConfigFeatures.update(ConfigFeatures(serverSentModels = serverSentModels))
+      }
     }
 
     withProxy(handle) { it.postMessageHostToWebview(stringEncodedJsonMessage) }
@@ -0,0 +1,119 @@
+package com.sourcegraph.cody.ui.web
+
+import com.intellij.openapi.diagnostic.Logger
+import com.sourcegraph.cody.agent.CodyAgent
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.CRC32
+import kotlin.io.path.Path
+
+/**
+ * Process-wide cache of the static resources webviews load from the agent directory.
+ *
+ * Every webview, and every reload of one, requests the same bundle files. They are read once and
+ * kept as immutable byte arrays together with their content type and an ETag, up to
+ * `cody.webview.resourceCache.maxBytes` in total. Files beyond that limit are still served, just
+ * read from disk each time.
+ *
+ * When the resources come from `CODY_DIR` they may be rebuilt while the IDE runs, so cached entries
+ * are checked against the modification time of their file.
+ */
+internal object WebviewResourceCache {
+  private val logger = Logger.getInstance(WebviewResourceCache::class.java)
+
+  class Resource(
+      val status: Int,
+      val content: ByteArray = ByteArray(0),
+      val contentType: String = "text/plain",
+      val etag: String? = null,
+      val lastModified: FileTime? = null
+  )
+
+  private val maxBytes =
+      System.getProperty("cody.webview.resourceCache.maxBytes", (64 * 1024 * 1024).toString())
+          .toLong()
+
+  private val codyDirOverride: String? = System.getenv("CODY_DIR")
+
+  private val resources = ConcurrentHashMap<String, Resource>()
+  private var cachedBytes = 0L
+
+  private val resourcesPath: Path? by lazy {
+    if (codyDirOverride != null) {
+      Path(codyDirOverride).resolve("agent/dist")
+    } else {
+      CodyAgent.pluginDirectory()?.resolve("agent")
+    }
+  }
+
+  /** Returns the resource if it is cached and up to date, without touching the disk otherwise. */
+  fun getIfPresent(requestPath: String): Resource? {
+    val resource = resources[requestPath] ?: return null
+    return if (codyDirOverride == null) resource else null
+  }
+
+  /** Returns the resource for [requestPath], reading and caching it if needed. Blocking. */
+  fun get(requestPath: String): Resource {
+    // Find the plugin resources.
+    val resourcesPath = resourcesPath
+    if (resourcesPath == null) {
+      logger.warn(
+          "Aborting WebView request for ${requestPath}, extension resource directory not found")
+      return Resource(status = 500)
+    }
+
+    // Find the specific file being requested.
+    val filePath = resourcesPath.resolve(requestPath).normalize()
+    if (!filePath.startsWith(resourcesPath)) {
+      logger.warn("Aborting WebView request for ${requestPath}, attempted directory traversal?")
+      return Resource(status = 400)
+    }
+
+    val cached = resources[requestPath]
+    if (cached != null && codyDirOverride == null) return cached
+    try {
+      val lastModified = Files.getLastModifiedTime(filePath)
+      if (cached != null && cached.lastModified == lastModified) return cached
+
+      val content = Files.readAllBytes(filePath)
+      val crc = CRC32().apply { update(content) }
+      val resource =
+          Resource(
+              status = 200,
+              content = content,
+              contentType = contentType(requestPath),
+              etag = "\"${java.lang.Long.toHexString(crc.value)}-${content.size}\"",
+              lastModified = lastModified)
+      put(requestPath, resource)
+      return resource
+    } catch (e: IOException) {
+      logger.warn(
+          "Failed to read file $filePath to serve extension WebView request $requestPath", e)
+      return Resource(status = 404)
+    }
+  }
+
+  private fun put(requestPath: String, resource: Resource) {
+    synchronized(resources) {
+      val previousSize = resources[requestPath]?.content?.size ?: 0
+      val newSize = cachedBytes + resource.content.size - previousSize
+      if (newSize > maxBytes) return
+      cachedBytes = newSize
+      resources[requestPath] = resource
+    }
+  }
+
+  private fun contentType(requestPath: String): String =
+      when {
+        requestPath.endsWith(".css") -> "text/css"
+        requestPath.endsWith(".html") -> "text/html"
+        requestPath.endsWith(".js") -> "text/javascript"
+        requestPath.endsWith(".png") -> "image/png"
+        requestPath.endsWith(".svg") -> "image/svg+xml"
+        requestPath.endsWith(".ttf") -> "font/ttf"
+        else -> "text/plain"
+      }
+}
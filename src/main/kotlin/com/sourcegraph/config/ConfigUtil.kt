@@ -6,16 +6,13 @@ import com.intellij.openapi.application.ApplicationInfo
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.extensions.PluginId
-import com.intellij.openapi.fileEditor.FileEditor
-import com.intellij.openapi.fileEditor.FileEditorManager
-import com.intellij.openapi.fileEditor.TextEditor
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.project.ProjectManager
 import com.sourcegraph.cody.agent.protocol_generated.ExtensionConfiguration
 import com.sourcegraph.cody.auth.CodyAccount
 import com.sourcegraph.cody.auth.SourcegraphServerPath
 import com.sourcegraph.cody.auth.SourcegraphServerPath.Companion.from
 import com.sourcegraph.cody.config.CodyApplicationSettings
+import com.sourcegraph.utils.OpenEditorIndex
 import com.typesafe.config.ConfigFactory
 import com.typesafe.config.ConfigRenderOptions
 import com.typesafe.config.ConfigValueFactory
@@ -214,13 +211,7 @@ object ConfigUtil {
 
   @JvmStatic
   fun getAllEditors(): List<Editor> {
-    val openProjects = ProjectManager.getInstance().openProjects
-    return openProjects
-        .toList()
-        .flatMap { project: Project -> FileEditorManager.getInstance(project).allEditors.toList() }
-        .filterIsInstance<TextEditor>()
-        .map { fileEditor: FileEditor -> (fileEditor as TextEditor).editor }
-        .toList()
+    return OpenEditorIndex.getInstance().allEditors().toList()
   }
 
   @JvmStatic
@@ -13,14 +13,11 @@ import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.ex.EditorEx
 import com.intellij.openapi.editor.impl.ImaginaryEditor
 import com.intellij.openapi.fileEditor.FileDocumentManager
-import com.intellij.openapi.fileEditor.FileEditor
 import com.intellij.openapi.fileEditor.FileEditorManager
 import com.intellij.openapi.fileEditor.OpenFileDescriptor
-import com.intellij.openapi.fileEditor.TextEditor
 import com.intellij.openapi.fileTypes.FileTypeRegistry
 import com.intellij.openapi.fileTypes.PlainTextLanguage
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.project.ProjectManager
 import com.intellij.openapi.util.Key
 import com.intellij.openapi.util.TextRange
 import com.intellij.openapi.vfs.LocalFileSystem
@@ -67,12 +64,12 @@ object CodyEditorUtil {
 
   @JvmStatic
   fun getAllOpenEditors(): Set<Editor> {
-    return ProjectManager.getInstance()
-        .openProjects
-        .flatMap { project: Project -> FileEditorManager.getInstance(project).allEditors.toList() }
-        .filterIsInstance<TextEditor>()
-        .map { fileEditor: FileEditor -> (fileEditor as TextEditor).editor }
-        .toSet()
+    return OpenEditorIndex.getInstance().allEditors()
+  }
+
+  @JvmStatic
+  fun getOpenEditors(project: Project): Set<Editor> {
+    return OpenEditorIndex.getInstance().editorsFor(project)
   }
 
   @JvmStatic
@@ -87,7 +84,7 @@ object CodyEditorUtil {
 
   @JvmStatic
   fun getEditorForDocument(document: Document): Editor? {
-    return getAllOpenEditors().find { it.document == document }
+    return OpenEditorIndex.getInstance().editorsFor(document).firstOrNull { !it.isDisposed }
   }
 
   @JvmStatic
@@ -1,22 +1,79 @@
 package com.sourcegraph.utils
 
+import com.intellij.application.options.CodeStyle
+import com.intellij.openapi.diagnostic.ControlFlowException
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Document
 import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.fileTypes.FileType
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Key
 import com.intellij.openapi.util.TextRange
 import com.intellij.psi.PsiFileFactory
 import com.intellij.psi.codeStyle.CodeStyleManager
+import com.intellij.psi.codeStyle.CommonCodeStyleSettings.IndentOptions
+import com.intellij.psi.util.PsiTreeUtil
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.max
 import kotlin.math.min
 
 class CodyFormatter {
+  enum class Mode {
+    /** The whole document is reformatted with the completion inserted. */
+    DOCUMENT,
+    /** Only the enclosing block around the completion is reformatted. */
+    WINDOW,
+    /** The completion is only re-indented according to the code style of the file type. */
+    INDENTATION
+  }
+
+  class Stats {
+    val calls = AtomicLong()
+    val totalNanos = AtomicLong()
+    val maxNanos = AtomicLong()
+
+    fun record(nanos: Long) {
+      calls.incrementAndGet()
+      totalNanos.addAndGet(nanos)
+      maxNanos.accumulateAndGet(nanos) { a, b -> max(a, b) }
+    }
+
+    fun reset() {
+      calls.set(0)
+      totalNanos.set(0)
+      maxNanos.set(0)
+    }
+  }
+
   companion object {
     private val logger = Logger.getInstance(CodyFormatter::class.java)
 
+    /** Documents up to this many characters are reformatted as a whole. */
+    private val maxDocumentLength =
+        System.getProperty("cody.autocomplete.formatting.maxDocumentLength", "20000").toInt()
+
+    /** Upper bound for the length of the window reformatted in larger documents. */
+    private val maxWindowLength =
+        System.getProperty("cody.autocomplete.formatting.maxWindowLength", "8000").toInt()
+
+    private class CachedIndentOptions(val modificationCount: Long, val options: IndentOptions)
+
+    private val INDENT_OPTIONS_KEY =
+        Key.create<ConcurrentHashMap<FileType, CachedIndentOptions>>("cody.formatter.indentOptions")
+
+    val stats: Map<Mode, Stats> = Mode.values().associateWith { Stats() }
+
     /**
      * Formatting used to format inlay text inserted by Cody, based on the surrounding code style in
      * the document.
+     *
+     * Small documents are reformatted as a whole. In larger ones only the block enclosing the
+     * completion is, found by indentation and bounded by `cody.autocomplete.formatting
+     * .maxWindowLength`. The header and closing lines of the blocks around it are kept so that the
+     * window parses like it does in the document; if it still doesn't parse, the whole document is
+     * reformatted. If there is no such block the completion is only re-indented.
      */
     fun formatStringBasedOnDocument(
         completionText: String,
@@ -25,38 +82,238 @@ class CodyFormatter {
         range: TextRange,
         cursor: Int
     ): String {
+      val file = FileDocumentManager.getInstance().getFile(document) ?: return completionText
+      val startNanos = System.nanoTime()
+      var mode = Mode.INDENTATION
       try {
-        val beforeCompletion = document.text.substring(0, range.startOffset)
-        val afterCompletion = document.text.substring(range.endOffset)
-        val contentWithCompletion = beforeCompletion + completionText + afterCompletion
-
-        val file = FileDocumentManager.getInstance().getFile(document) ?: return completionText
-        val psiFile =
-            PsiFileFactory.getInstance(project)
-                .createFileFromText("TEMP", file.fileType, contentWithCompletion)
-
-        val codeStyleManager = CodeStyleManager.getInstance(project)
-        val endOffset = max(cursor, range.startOffset + completionText.length)
-        codeStyleManager.reformatText(psiFile, cursor, endOffset)
-
-        // Fix for the IJ formatting bug which removes spaces even before the given formatting
-        // range.
-        val existingStart = contentWithCompletion.substring(0, cursor)
-        val boundedCursorPosition = min(cursor, psiFile.text.length)
-        val formattedStart = psiFile.text.substring(0, boundedCursorPosition)
-        val startOfDiff = existingStart.zip(formattedStart).indexOfFirst { (e, f) -> e != f }
-
-        val formattedText =
-            if (startOfDiff != -1) {
-              val addition = formattedStart.substring(startOfDiff)
-              existingStart + addition + psiFile.text.substring(boundedCursorPosition)
-            } else psiFile.text
-        return formattedText.substring(
-            range.startOffset, range.endOffset + formattedText.length - document.textLength)
+        val text = document.immutableCharSequence
+        val wholeDocument = TextRange(0, text.length)
+        val window =
+            if (text.length <= maxDocumentLength) wholeDocument else enclosingBlock(text, range)
+        if (window == null) {
+          return normalizeIndentation(completionText, indentOptions(project, file.fileType))
+        }
+        if (window != wholeDocument) {
+          mode = Mode.WINDOW
+          formatInWindow(completionText, project, file.fileType, text, window, range, cursor)?.let {
+            return it
+          }
+          logger.debug("Completion window doesn't parse, formatting the whole document")
+        }
+        mode = Mode.DOCUMENT
+        return formatInWindow(
+            completionText, project, file.fileType, text, wholeDocument, range, cursor)
+            ?: completionText
       } catch (e: Exception) {
-        logger.error("Failed to format code snippet", e)
+        // Formatting runs in cancellable read actions, which must be able to restart.
+        if (e is ControlFlowException || e is CancellationException) throw e
+        logger.warn("Failed to format code snippet", e)
         return completionText
+      } finally {
+        val nanos = System.nanoTime() - startNanos
+        stats.getValue(mode).record(nanos)
+        logger.debug("Formatted completion (${mode.name.lowercase()}) in ${nanos / 1_000_000}ms")
       }
     }
+
+    /**
+     * Formats [completionText] inserted at [range] within the lines [window] of [text]. Returns
+     * null if [window] is only part of the document and doesn't parse without errors.
+     */
+    private fun formatInWindow(
+        completionText: String,
+        project: Project,
+        fileType: FileType,
+        text: CharSequence,
+        window: TextRange,
+        range: TextRange,
+        cursor: Int
+    ): String? {
+      val isPartial = window.length != text.length
+      val (prefix, suffix) = if (isPartial) enclosingContext(text, window) else Pair("", "")
+
+      // Offsets relative to the text given to the formatter.
+      val shift = prefix.length - window.startOffset
+      val rangeStart = range.startOffset + shift
+      val rangeEnd = range.endOffset + shift
+      val windowCursor = cursor + shift
+      val originalLength = prefix.length + window.length + suffix.length
+
+      val contentWithCompletion =
+          StringBuilder(originalLength + completionText.length)
+              .append(prefix)
+              .append(text, window.startOffset, range.startOffset)
+              .append(completionText)
+              .append(text, range.endOffset, window.endOffset)
+              .append(suffix)
+              .toString()
+
+      val psiFile =
+          PsiFileFactory.getInstance(project)
+              .createFileFromText("TEMP", fileType, contentWithCompletion)
+      if (isPartial && PsiTreeUtil.hasErrorElements(psiFile)) return null
+
+      val codeStyleManager = CodeStyleManager.getInstance(project)
+      val endOffset = max(windowCursor, rangeStart + completionText.length)
+      codeStyleManager.reformatText(psiFile, windowCursor, endOffset)
+
+      // Fix for the IJ formatting bug which removes spaces even before the given formatting
+      // range.
+      val existingStart = contentWithCompletion.substring(0, windowCursor)
+      val boundedCursorPosition = min(windowCursor, psiFile.text.length)
+      val formattedStart = psiFile.text.substring(0, boundedCursorPosition)
+      val startOfDiff = existingStart.zip(formattedStart).indexOfFirst { (e, f) -> e != f }
+
+      val formattedText =
+          if (startOfDiff != -1) {
+            val addition = formattedStart.substring(startOfDiff)
+            existingStart + addition + psiFile.text.substring(boundedCursorPosition)
+          } else psiFile.text
+      return formattedText.substring(rangeStart, rangeEnd + formattedText.length - originalLength)
+    }
+
+    /**
+     * Returns the header lines of the blocks enclosing [window] and their closing lines, e.g. the
+     * class declaration around a method and its closing brace, so that the window can be parsed
+     * on its own. Closing lines are only recognized by a leading closing bracket.
+     */
+    private fun enclosingContext(text: CharSequence, window: TextRange): Pair<String, String> {
+      val headers = mutableListOf<CharSequence>()
+      val closers = StringBuilder()
+      var indent = indentation(text, window.startOffset)
+      var start = window.startOffset
+      var end = window.endOffset
+      while (indent > 0) {
+        var header = start
+        do {
+          if (header == 0) break
+          header = lineStart(text, header - 1)
+        } while (isBlank(text, header) || indentation(text, header) >= indent)
+        if (header == start || isBlank(text, header) || indentation(text, header) >= indent) break
+        indent = indentation(text, header)
+        start = header
+        headers.add(text.subSequence(header, lineEnd(text, header)))
+
+        var line = end
+        while (line < text.length) {
+          val next = line + 1
+          if (!isBlank(text, next) && indentation(text, next) <= indent) {
+            val first = text[next + indentation(text, next)]
+            if (first == '}' || first == ')' || first == ']') {
+              line = lineEnd(text, next)
+              closers.append('\n').append(text, next, line)
+            }
+            break
+          }
+          line = lineEnd(text, next)
+        }
+        end = line
+      }
+      val prefix = StringBuilder()
+      for (header in headers.asReversed()) prefix.append(header).append('\n')
+      return Pair(prefix.toString(), closers.toString())
+    }
+
+    /**
+     * Returns the lines of the largest block around [range] that fits in [maxWindowLength], where a
+     * block starts at a less indented header line and ends at the next line indented at most as
+     * much as the header (its closing line, if any). Returns null if even the innermost block is
+     * too large.
+     */
+    private fun enclosingBlock(text: CharSequence, range: TextRange): TextRange? {
+      val firstLineStart = lineStart(text, range.startOffset)
+      val lastLineEnd = lineEnd(text, range.endOffset)
+      var block: TextRange? = null
+      var indent = indentation(text, firstLineStart)
+      var start = firstLineStart
+      var end = lastLineEnd
+      while (indent > 0) {
+        // Find the header: the closest preceding non-blank line that is indented less.
+        var header = start
+        do {
+          if (header == 0) return block
+          header = lineStart(text, header - 1)
+        } while (isBlank(text, header) || indentation(text, header) >= indent)
+        indent = indentation(text, header)
+        start = header
+
+        // Find the closing line: the next non-blank line indented at most as much as the header.
+        var line = end
+        while (line < text.length) {
+          val next = line + 1
+          if (!isBlank(text, next) && indentation(text, next) <= indent) {
+            line = lineEnd(text, next)
+            break
+          }
+          line = lineEnd(text, next)
+        }
+        end = line
+
+        if (end - start > maxWindowLength) return block
+        block = TextRange(start, end)
+      }
+      return block
+    }
+
+    private fun lineStart(text: CharSequence, offset: Int): Int {
+      var i = min(offset, text.length)
+      while (i > 0 && text[i - 1] != '\n') i--
+      return i
+    }
+
+    private fun lineEnd(text: CharSequence, offset: Int): Int {
+      var i = offset
+      while (i < text.length && text[i] != '\n') i++
+      return i
+    }
+
+    private fun indentation(text: CharSequence, lineStart: Int): Int {
+      var i = lineStart
+      while (i < text.length && (text[i] == ' ' || text[i] == '\t')) i++
+      return i - lineStart
+    }
+
+    private fun isBlank(text: CharSequence, lineStart: Int): Boolean {
+      val end = lineEnd(text, lineStart)
+      return (lineStart until end).all { text[it].isWhitespace() }
+    }
+
+    /**
+     * Re-indents all but the first line of [completionText] with the indent character of the file
+     * type, preserving the indentation width.
+     */
+    private fun normalizeIndentation(completionText: String, options: IndentOptions): String {
+      val tabSize = max(options.TAB_SIZE, 1)
+      return completionText.lines().withIndex().joinToString("\n") { (index, line) ->
+        if (index == 0) return@joinToString line
+        val content = line.trimStart(' ', '\t')
+        var width = 0
+        for (c in line.substring(0, line.length - content.length)) {
+          width = if (c == '\t') (width / tabSize + 1) * tabSize else width + 1
+        }
+        val indent =
+            if (options.USE_TAB_CHARACTER) {
+              "\t".repeat(width / tabSize) + " ".repeat(width % tabSize)
+            } else {
+              " ".repeat(width)
+            }
+        indent + content
+      }
+    }
+
+    private fun indentOptions(project: Project, fileType: FileType): IndentOptions {
+      val settings = CodeStyle.getSettings(project)
+      val modificationCount = settings.modificationTracker.modificationCount
+      val cache =
+          project.getUserData(INDENT_OPTIONS_KEY)
+              ?: ConcurrentHashMap<FileType, CachedIndentOptions>().also {
+                project.putUserData(INDENT_OPTIONS_KEY, it)
+              }
+      val cached = cache[fileType]
+      if (cached != null && cached.modificationCount == modificationCount) return cached.options
+      val options = settings.getIndentOptions(fileType)
+      cache[fileType] = CachedIndentOptions(modificationCount, options)
+      return options
+    }
   }
 }
@@ -0,0 +1,75 @@
+package com.sourcegraph.utils
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.editor.EditorFactory
+import com.intellij.openapi.editor.EditorKind
+import com.intellij.openapi.editor.event.EditorFactoryEvent
+import com.intellij.openapi.editor.event.EditorFactoryListener
+import com.intellij.openapi.project.Project
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Index of the open main editors (the text editors of file tabs) by document and by project,
+ * maintained from [EditorFactory] events.
+ *
+ * Document listeners look up the editor of a document on every change, which used to collect the
+ * editors of all tabs of all open projects each time.
+ */
+@Service(Service.Level.APP)
+class OpenEditorIndex : Disposable {
+
+  private val editorsByDocument = ConcurrentHashMap<Document, List<Editor>>()
+  private val editorsByProject = ConcurrentHashMap<Project, Set<Editor>>()
+
+  init {
+    val editorFactory = EditorFactory.getInstance()
+    editorFactory.addEditorFactoryListener(
+        object : EditorFactoryListener {
+          override fun editorCreated(event: EditorFactoryEvent) = add(event.editor)
+
+          override fun editorReleased(event: EditorFactoryEvent) = remove(event.editor)
+        },
+        this)
+    editorFactory.allEditors.forEach { add(it) }
+  }
+
+  /** Returns the open editors of [document], in the order they were opened. */
+  fun editorsFor(document: Document): List<Editor> = editorsByDocument[document] ?: emptyList()
+
+  fun editorsFor(project: Project): Set<Editor> = editorsByProject[project] ?: emptySet()
+
+  fun allEditors(): Set<Editor> = editorsByProject.values.flatMapTo(LinkedHashSet()) { it }
+
+  private fun add(editor: Editor) {
+    if (editor.editorKind != EditorKind.MAIN_EDITOR) return
+    val project = editor.project ?: return
+    editorsByDocument.compute(editor.document) { _, editors ->
+      if (editors == null) listOf(editor) else if (editor in editors) editors else editors + editor
+    }
+    editorsByProject.compute(project) { _, editors -> (editors ?: emptySet()) + editor }
+  }
+
+  private fun remove(editor: Editor) {
+    editorsByDocument.computeIfPresent(editor.document) { _, editors ->
+      (editors - editor).ifEmpty { null }
+    }
+    val project = editor.project ?: return
+    editorsByProject.computeIfPresent(project) { _, editors -> (editors - editor).ifEmpty { null } }
+  }
+
+  override fun dispose() {
+    editorsByDocument.clear()
+    editorsByProject.clear()
+  }
+
+  companion object {
+    @JvmStatic
+    fun getInstance(): OpenEditorIndex {
+      return service<OpenEditorIndex>()
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.sourcegraph.cody.autocomplete
+
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteItem
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteResult
+import com.sourcegraph.cody.agent.protocol_generated.Position
+import com.sourcegraph.cody.agent.protocol_generated.Range
+import junit.framework.TestCase
+
+class AutocompleteResultCacheTest : TestCase() {
+  private val url = "file:///src/Foo.java"
+  private val linePrefix = "  val x = foo"
+  private val lineSuffix = ""
+  private val surroundingLines = "fun foo() {\n\u0000\n}"
+  private val position = Position(3, linePrefix.length.toLong())
+
+  private fun cacheWithSuggestion(insertText: String): AutocompleteResultCache {
+    val cache = AutocompleteResultCache()
+    val item =
+        AutocompleteItem(id = "1", insertText = insertText, range = Range(position, position))
+    cache.put(
+        url,
+        position,
+        linePrefix,
+        lineSuffix,
+        surroundingLines,
+        AutocompleteResult(items = listOf(item)))
+    return cache
+  }
+
+  fun test_hitAtSamePosition() {
+    val cache = cacheWithSuggestion("Bar(42)")
+    val result = cache.get(url, position, linePrefix, lineSuffix, surroundingLines)
+    assertEquals("Bar(42)", result!!.items.single().insertText)
+    assertEquals(1, cache.hits.get())
+  }
+
+  fun test_typeThroughTrimsSuggestion() {
+    val cache = cacheWithSuggestion("Bar(42)")
+    val typedPosition = Position(3, position.character + 3)
+    val item =
+        cache
+            .get(url, typedPosition, linePrefix + "Bar", lineSuffix, surroundingLines)!!
+            .items
+            .single()
+    assertEquals("(42)", item.insertText)
+    assertEquals(typedPosition, item.range.start)
+  }
+
+  fun test_typingSomethingElseMisses() {
+    val cache = cacheWithSuggestion("Bar(42)")
+    val typedPosition = Position(3, position.character + 3)
+    assertNull(cache.get(url, typedPosition, linePrefix + "Baz", lineSuffix, surroundingLines))
+    assertEquals(1, cache.misses.get())
+  }
+
+  fun test_differentSuffixMisses() {
+    val cache = cacheWithSuggestion("Bar(42)")
+    assertNull(cache.get(url, position, linePrefix, ")", surroundingLines))
+  }
+
+  fun test_sameTextOnOtherLineMisses() {
+    val cache = cacheWithSuggestion("Bar(42)")
+    val otherLine = Position(5, position.character)
+    assertNull(cache.get(url, otherLine, linePrefix, lineSuffix, surroundingLines))
+  }
+
+  fun test_changedSurroundingLinesMiss() {
+    val cache = cacheWithSuggestion("Bar(42)")
+    assertNull(cache.get(url, position, linePrefix, lineSuffix, "fun bar() {\n\u0000\n}"))
+  }
+
+  fun test_fullyTypedSuggestionMisses() {
+    val cache = cacheWithSuggestion("Bar")
+    val typedPosition = Position(3, position.character + 3)
+    assertNull(cache.get(url, typedPosition, linePrefix + "Bar", lineSuffix, surroundingLines))
+  }
+}
@@ -0,0 +1,62 @@
+package com.sourcegraph.cody.autocomplete
+
+import com.sourcegraph.cody.agent.protocol_generated.AutocompleteItem
+import com.sourcegraph.cody.agent.protocol_generated.Position
+import com.sourcegraph.cody.agent.protocol_generated.Range
+import junit.framework.TestCase
+
+class AutocompleteSchedulerTest : TestCase() {
+  private val linePrefix = "  val x = foo"
+  private val position = Position(3, linePrefix.length.toLong())
+
+  private fun item(insertText: String, start: Position = position, end: Position = start) =
+      AutocompleteItem(id = "1", insertText = insertText, range = Range(start, end))
+
+  fun test_nothingTypedKeepsItem() {
+    val item = item("Bar(42)")
+    assertSame(item, AutocompleteScheduler.advance(item, position, linePrefix, typed = ""))
+  }
+
+  fun test_typedTextIsTrimmedFromItemAtCaret() {
+    val end = Position(3, position.character + 7)
+    val advanced =
+        AutocompleteScheduler.advance(item("Bar(42)", end = end), position, linePrefix, "Bar")!!
+    assertEquals("(42)", advanced.insertText)
+    assertEquals(Position(3, position.character + 3), advanced.range.start)
+    assertEquals(Position(3, end.character + 3), advanced.range.end)
+  }
+
+  fun test_typingSomethingElseDropsItem() {
+    assertNull(AutocompleteScheduler.advance(item("Bar(42)"), position, linePrefix, "Baz"))
+  }
+
+  fun test_itemStartingEarlierOnTheLineKeepsItsText() {
+    val start = Position(3, position.character - 3)
+    val advanced =
+        AutocompleteScheduler.advance(
+            item("fooBar(42)", start = start, end = position), position, linePrefix, "Bar")!!
+    assertEquals("fooBar(42)", advanced.insertText)
+    assertEquals(start, advanced.range.start)
+    assertEquals(Position(3, position.character + 3), advanced.range.end)
+  }
+
+  fun test_itemStartingEarlierMustMatchTheLine() {
+    val start = Position(3, position.character - 3)
+    assertNull(
+        AutocompleteScheduler.advance(
+            item("fuzBar(42)", start = start, end = position), position, linePrefix, "Bar"))
+  }
+
+  fun test_itemOnOtherLineIsDropped() {
+    val item = item("Bar(42)", start = Position(4, 0))
+    assertNull(AutocompleteScheduler.advance(item, position, linePrefix, "Bar"))
+  }
+
+  fun test_multiLineRangeEndIsKept() {
+    val end = Position(5, 2)
+    val advanced =
+        AutocompleteScheduler.advance(item("Bar(\n42)", end = end), position, linePrefix, "Bar")!!
+    assertEquals("(\n42)", advanced.insertText)
+    assertEquals(end, advanced.range.end)
+  }
+}
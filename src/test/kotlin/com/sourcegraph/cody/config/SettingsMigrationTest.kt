@@ -481,4 +481,56 @@ class SettingsMigrationTest : BasePlatformTestCase() {
 
     assertEquals(expectedResult, result)
   }
+
+  private fun importedChat(updatedAt: String, text: String = "Hello") =
+      ChatState(updatedAt).apply {
+        this.updatedAt = updatedAt
+        messages =
+            mutableListOf(
+                MessageState().apply {
+                  this.text = text
+                  speaker = SpeakerState.HUMAN
+                })
+      }
+
+  fun `test chatsToImport sorts newest first and skips chats at or after the watermark`() {
+    val account =
+        DeprecatedCodyAccount(
+            name = "account", server = SourcegraphServerPath("https://sourcegraph.com"))
+    val chats =
+        listOf("2024-01-02T00:00", "2024-01-04T00:00", "2024-01-01T00:00", "2024-01-03T00:00")
+            .map { account to importedChat(it) } + (account to ChatState("no-timestamp"))
+
+    assertEquals(
+        listOf("2024-01-04T00:00", "2024-01-03T00:00", "2024-01-02T00:00", "2024-01-01T00:00"),
+        ChatHistoryMigration.chatsToImport(chats, watermark = null).map { it.second.updatedAt })
+    assertEquals(
+        listOf("2024-01-02T00:00", "2024-01-01T00:00"),
+        ChatHistoryMigration.chatsToImport(chats, watermark = "2024-01-03T00:00").map {
+          it.second.updatedAt
+        })
+  }
+
+  fun `test chunkEnd limits chunks by count and size without splitting equal timestamps`() {
+    val account =
+        DeprecatedCodyAccount(
+            name = "account", server = SourcegraphServerPath("https://sourcegraph.com"))
+    val chats =
+        listOf(
+                "2024-01-05T00:00",
+                "2024-01-04T00:00",
+                "2024-01-04T00:00",
+                "2024-01-04T00:00",
+                "2024-01-03T00:00",
+                "2024-01-02T00:00")
+            .map { account to importedChat(it, text = "x".repeat(10)) }
+
+    // By count: the chats sharing the timestamp of the second one all go into the first chunk.
+    assertEquals(4, ChatHistoryMigration.chunkEnd(chats, 0, maxChats = 2, maxChars = 1_000))
+    assertEquals(6, ChatHistoryMigration.chunkEnd(chats, 4, maxChats = 2, maxChars = 1_000))
+    // By size: a chunk is closed once it holds `maxChars`, but always takes at least one chat.
+    assertEquals(1, ChatHistoryMigration.chunkEnd(chats, 0, maxChats = 50, maxChars = 10))
+    assertEquals(5, ChatHistoryMigration.chunkEnd(chats, 4, maxChats = 50, maxChars = 1))
+    assertEquals(6, ChatHistoryMigration.chunkEnd(chats, 5, maxChats = 50, maxChars = 1))
+  }
 }
@@ -0,0 +1,60 @@
+package com.sourcegraph.cody.ignore
+
+import com.sourcegraph.cody.agent.protocol_generated.Ignore_TestResult.PolicyEnum
+import junit.framework.TestCase
+
+class IgnorePolicyCacheTest : TestCase() {
+  private var now = 1_000L
+
+  private fun cache(inferIgnoredSiblings: Boolean = true) =
+      IgnorePolicyCache(
+          size = 100,
+          maxAgeMsec = 60_000,
+          inferIgnoredSiblings = inferIgnoredSiblings,
+          clock = { now })
+
+  fun test_cachedPolicyExpires() {
+    val cache = cache()
+    cache.put("file:///repo/a.kt", PolicyEnum.Use, cache.generation())
+    assertEquals(PolicyEnum.Use, cache.get("file:///repo/a.kt"))
+
+    now += 60_000
+    assertNull(cache.get("file:///repo/a.kt"))
+  }
+
+  fun test_responsesFromBeforeClearAreNotCached() {
+    val cache = cache()
+    val generation = cache.generation()
+    cache.clear()
+    cache.put("file:///repo/a.kt", PolicyEnum.Use, generation)
+    assertNull(cache.get("file:///repo/a.kt"))
+  }
+
+  fun test_usedPolicyIsNeverInferredForSiblings() {
+    val cache = cache()
+    cache.put("file:///repo/a.kt", PolicyEnum.Use, cache.generation())
+    assertNull(cache.get("file:///repo/secret.kt"))
+  }
+
+  fun test_ignoredPolicyIsInferredForSiblings() {
+    val cache = cache()
+    cache.put("file:///repo/a.kt", PolicyEnum.Ignore, cache.generation())
+    assertEquals(PolicyEnum.Ignore, cache.get("file:///repo/b.kt"))
+    assertNull(cache.get("file:///repo/nested/c.kt"))
+  }
+
+  fun test_mixedDirectoryIsNotUsedForInference() {
+    val cache = cache()
+    cache.put("file:///repo/a.kt", PolicyEnum.Ignore, cache.generation())
+    cache.put("file:///repo/b.kt", PolicyEnum.Use, cache.generation())
+    cache.put("file:///repo/c.kt", PolicyEnum.Ignore, cache.generation())
+    assertEquals(PolicyEnum.Use, cache.get("file:///repo/b.kt"))
+    assertNull(cache.get("file:///repo/d.kt"))
+  }
+
+  fun test_noInferenceWhenDisabled() {
+    val cache = cache(inferIgnoredSiblings = false)
+    cache.put("file:///repo/a.kt", PolicyEnum.Ignore, cache.generation())
+    assertNull(cache.get("file:///repo/b.kt"))
+  }
+}
@@ -0,0 +1,148 @@
+package com.sourcegraph.cody.listeners
+
+import com.sourcegraph.cody.agent.CodyAgent
+import com.sourcegraph.cody.agent.CodyAgentServer
+import com.sourcegraph.cody.agent.protocol_generated.Position
+import com.sourcegraph.cody.agent.protocol_generated.ProtocolTextDocument
+import com.sourcegraph.cody.agent.protocol_generated.ProtocolTextDocumentContentChangeEvent
+import com.sourcegraph.cody.agent.protocol_generated.Range
+import junit.framework.TestCase
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+
+class DocumentSyncQueueTest : TestCase() {
+  private val uri = "file:///src/test.txt"
+
+  private fun caret(line: Long, character: Long) =
+      Range(Position(line, character), Position(line, character))
+
+  private fun insert(line: Long, character: Long, text: String) =
+      ProtocolTextDocumentContentChangeEvent(caret(line, character), text)
+
+  fun test_selectionOnlyUpdatesAreCoalesced() {
+    val first = ProtocolTextDocument(uri = uri, selection = caret(0, 1))
+    val second = ProtocolTextDocument(uri = uri, selection = caret(0, 2))
+    val merged = DocumentSyncQueue.merge(first, second)!!
+    assertEquals(caret(0, 2), merged.selection)
+    assertNull(merged.contentChanges)
+  }
+
+  fun test_incrementalChangesAreConcatenatedInOrder() {
+    val first =
+        ProtocolTextDocument(
+            uri = uri, selection = caret(0, 1), contentChanges = listOf(insert(0, 0, "a")))
+    val second =
+        ProtocolTextDocument(
+            uri = uri, selection = caret(0, 2), contentChanges = listOf(insert(0, 1, "b")))
+    val merged = DocumentSyncQueue.merge(first, second)!!
+    assertEquals(listOf(insert(0, 0, "a"), insert(0, 1, "b")), merged.contentChanges)
+    assertEquals(caret(0, 2), merged.selection)
+  }
+
+  fun test_selectionUpdateKeepsPendingContentChanges() {
+    val edit =
+        ProtocolTextDocument(
+            uri = uri, selection = caret(0, 1), contentChanges = listOf(insert(0, 0, "a")))
+    val move = ProtocolTextDocument(uri = uri, selection = caret(1, 0))
+    val merged = DocumentSyncQueue.merge(edit, move)!!
+    assertEquals(listOf(insert(0, 0, "a")), merged.contentChanges)
+    assertEquals(caret(1, 0), merged.selection)
+  }
+
+  fun test_fullContentSupersedesPendingChanges() {
+    val edit = ProtocolTextDocument(uri = uri, contentChanges = listOf(insert(0, 0, "a")))
+    val full = ProtocolTextDocument(uri = uri, content = "ab", selection = caret(0, 2))
+    val merged = DocumentSyncQueue.merge(edit, full)!!
+    assertEquals("ab", merged.content)
+    assertNull(merged.contentChanges)
+  }
+
+  fun test_differentDocumentsAreNotMerged() {
+    val first = ProtocolTextDocument(uri = uri, selection = caret(0, 1))
+    val second = ProtocolTextDocument(uri = "file:///src/other.txt", selection = caret(0, 1))
+    assertNull(DocumentSyncQueue.merge(first, second))
+  }
+
+  fun test_notificationsQueuedDuringFlushAreSentByTheSameFlush() {
+    val scheduledFlushes = mutableListOf<(CodyAgent) -> Unit>()
+    val queue = DocumentSyncQueue(isEnabled = { true }, scheduleFlush = { scheduledFlushes += it })
+    val sent = mutableListOf<String>()
+    val server =
+        mock<CodyAgentServer> {
+          on { textDocument_didOpen(any()) } doAnswer
+              {
+                sent += "open"
+                // Arrives while the first batch is still being sent.
+                queue.didChange(
+                    ProtocolTextDocument(uri = uri, contentChanges = listOf(insert(0, 0, "a"))))
+                queue.didClose(ProtocolTextDocument(uri = uri))
+              }
+          on { textDocument_didChange(any()) } doAnswer { sent += "change" }
+          on { textDocument_didClose(any()) } doAnswer { sent += "close" }
+        }
+    val agent = mock<CodyAgent> { on { this.server } doReturn server }
+
+    queue.didOpen(ProtocolTextDocument(uri = uri, content = ""))
+    assertEquals(1, scheduledFlushes.size)
+    scheduledFlushes.single()(agent)
+
+    assertEquals(listOf("open", "change", "close"), sent)
+    assertEquals(1, scheduledFlushes.size)
+
+    // Once drained, the next notification schedules a new flush.
+    queue.didChange(ProtocolTextDocument(uri = uri, selection = caret(0, 1)))
+    assertEquals(2, scheduledFlushes.size)
+  }
+
+  fun test_resetDropsPendingNotifications() {
+    val scheduledFlushes = mutableListOf<(CodyAgent) -> Unit>()
+    val queue = DocumentSyncQueue(isEnabled = { true }, scheduleFlush = { scheduledFlushes += it })
+    val sent = mutableListOf<String>()
+    val server =
+        mock<CodyAgentServer> { on { textDocument_didOpen(any()) } doAnswer { sent += "open" } }
+    val agent = mock<CodyAgent> { on { this.server } doReturn server }
+
+    queue.didOpen(ProtocolTextDocument(uri = uri, content = ""))
+    queue.reset()
+    scheduledFlushes.single()(agent)
+    assertTrue(sent.isEmpty())
+
+    queue.didOpen(ProtocolTextDocument(uri = uri, content = ""))
+    assertEquals(2, scheduledFlushes.size)
+    scheduledFlushes.last()(agent)
+    assertEquals(listOf("open"), sent)
+  }
+
+  fun test_flushThatNeverStartsIsRescheduled() {
+    var now = 0L
+    val scheduledFlushes = mutableListOf<(CodyAgent) -> Unit>()
+    val queue =
+        DocumentSyncQueue(
+            isEnabled = { true }, scheduleFlush = { scheduledFlushes += it }, clock = { now })
+    val sent = mutableListOf<String>()
+    val server =
+        mock<CodyAgentServer> {
+          on { textDocument_didOpen(any()) } doAnswer { sent += "open" }
+          on { textDocument_didClose(any()) } doAnswer { sent += "close" }
+        }
+    val agent = mock<CodyAgent> { on { this.server } doReturn server }
+
+    // The first flush is dropped, e.g. because the agent failed to start.
+    queue.didOpen(ProtocolTextDocument(uri = uri, content = ""))
+    now += DocumentSyncQueue.STALE_FLUSH_MSEC
+    queue.didClose(ProtocolTextDocument(uri = uri))
+    assertEquals(1, scheduledFlushes.size)
+
+    now += 1
+    queue.didOpen(ProtocolTextDocument(uri = uri, content = ""))
+    assertEquals(2, scheduledFlushes.size)
+    scheduledFlushes.last()(agent)
+    assertEquals(listOf("open", "close", "open"), sent)
+
+    // The abandoned flush does nothing if it runs after all.
+    scheduledFlushes.first()(agent)
+    assertEquals(listOf("open", "close", "open"), sent)
+  }
+}
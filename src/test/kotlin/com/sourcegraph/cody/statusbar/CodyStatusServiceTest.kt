@@ -0,0 +1,63 @@
+package com.sourcegraph.cody.statusbar
+
+import junit.framework.TestCase
+
+class CodyStatusServiceTest : TestCase() {
+  private val ready =
+      CodyStatusService.Signals(
+          isCodyEnabled = true,
+          hasAgentError = false,
+          isAgentConnected = true,
+          hasActiveAccount = true,
+          isRateLimited = false,
+          isEditingIgnoredFile = false,
+          isAutocompleteEnabled = true)
+
+  fun test_readyWhenNothingIsWrong() {
+    assertEquals(CodyStatus.Ready, CodyStatusService.statusFor(ready))
+  }
+
+  fun test_eachSignalMapsToItsStatus() {
+    assertEquals(
+        CodyStatus.CodyDisabled, CodyStatusService.statusFor(ready.copy(isCodyEnabled = false)))
+    assertEquals(
+        CodyStatus.AgentError, CodyStatusService.statusFor(ready.copy(hasAgentError = true)))
+    assertEquals(
+        CodyStatus.CodyAgentNotRunning,
+        CodyStatusService.statusFor(ready.copy(isAgentConnected = false)))
+    assertEquals(
+        CodyStatus.CodyNotSignedIn,
+        CodyStatusService.statusFor(ready.copy(hasActiveAccount = false)))
+    assertEquals(
+        CodyStatus.RateLimitError, CodyStatusService.statusFor(ready.copy(isRateLimited = true)))
+    assertEquals(
+        CodyStatus.InIgnoredFile,
+        CodyStatusService.statusFor(ready.copy(isEditingIgnoredFile = true)))
+    assertEquals(
+        CodyStatus.AutocompleteDisabled,
+        CodyStatusService.statusFor(ready.copy(isAutocompleteEnabled = false)))
+  }
+
+  fun test_fundamentalIssuesTakePrecedence() {
+    val everythingWrong =
+        CodyStatusService.Signals(
+            isCodyEnabled = true,
+            hasAgentError = true,
+            isAgentConnected = false,
+            hasActiveAccount = false,
+            isRateLimited = true,
+            isEditingIgnoredFile = true,
+            isAutocompleteEnabled = false)
+    assertEquals(CodyStatus.AgentError, CodyStatusService.statusFor(everythingWrong))
+    assertEquals(
+        CodyStatus.CodyAgentNotRunning,
+        CodyStatusService.statusFor(everythingWrong.copy(hasAgentError = false)))
+    assertEquals(
+        CodyStatus.CodyNotSignedIn,
+        CodyStatusService.statusFor(
+            everythingWrong.copy(hasAgentError = false, isAgentConnected = true)))
+    assertEquals(
+        CodyStatus.CodyDisabled,
+        CodyStatusService.statusFor(everythingWrong.copy(isCodyEnabled = false)))
+  }
+}
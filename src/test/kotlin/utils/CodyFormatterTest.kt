@@ -120,4 +120,37 @@ class CodyFormatterTest : BasePlatformTestCase() {
 
     TestCase.assertEquals(existingLine, formatText(existingLine, offset, range!!, testFileContent))
   }
+
+  fun `test top level completion in large document is only re-indented`() {
+    val padding = "// padding\n".repeat(2000)
+    val testFileContent = "$testFileContent\n$padding"
+    val offset = testFileContent.length
+
+    TestCase.assertEquals(
+        "class Other {\n    int x;\n}",
+        formatText("class Other {\n\tint x;\n}", offset, fileContent = testFileContent))
+  }
+
+  fun `test completion in large document is formatted within its enclosing method`() {
+    val padding = (0 until 500).joinToString("\n") { "    void method$it() {}" }
+    val testFileContent =
+        """|public class Big {
+           |$padding
+           |    public static void main(String[] args) {
+           |        // MAIN
+           |    }
+           |$padding
+           |}"""
+            .trimMargin()
+    val offset = testFileContent.indexOf("// MAIN")
+    val windowCalls = CodyFormatter.stats.getValue(CodyFormatter.Mode.WINDOW).calls.get()
+    val documentCalls = CodyFormatter.stats.getValue(CodyFormatter.Mode.DOCUMENT).calls.get()
+
+    TestCase.assertEquals(
+        "int x = 2;", formatText("int   x =   2;", offset, fileContent = testFileContent))
+    TestCase.assertEquals(
+        windowCalls + 1, CodyFormatter.stats.getValue(CodyFormatter.Mode.WINDOW).calls.get())
+    TestCase.assertEquals(
+        documentCalls, CodyFormatter.stats.getValue(CodyFormatter.Mode.DOCUMENT).calls.get())
+  }
 }